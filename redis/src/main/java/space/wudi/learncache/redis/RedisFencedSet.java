@@ -0,0 +1,65 @@
+package space.wudi.learncache.redis;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * set a key only if the writer holds a newer lock than the last writer.
+ * <br/>
+ * The fencing token of the last accepted write is kept in "{key}:fencing-token". A write with a smaller token
+ * comes from a holder who lost its lock without knowing, and is dropped. The same token may write many times.
+ * Tokens are compared as strings, so they must be of fixed width, like the FencingToken of a zookeeper lock.
+ * <br/>
+ * The token key never expires, otherwise a stale holder could write again after it is gone.
+ */
+@Component
+public class RedisFencedSet {
+    private static final String TOKEN_SUFFIX = ":fencing-token";
+    /**
+     * KEYS[1] the key, KEYS[2] its token key. ARGV[1] value, ARGV[2] token, ARGV[3] expire in milliseconds, 0 for never
+     */
+    private static final RedisScript<Long> SET_IF_NEWER = new DefaultRedisScript<>(
+            "local last = redis.call('GET', KEYS[2])\n" +
+            "if last and last > ARGV[2] then return 0 end\n" +
+            "if tonumber(ARGV[3]) > 0 then\n" +
+            "  redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[3])\n" +
+            "else\n" +
+            "  redis.call('SET', KEYS[1], ARGV[1])\n" +
+            "end\n" +
+            "redis.call('SET', KEYS[2], ARGV[2])\n" +
+            "return 1", Long.class);
+
+    @Autowired
+    RedisTemplate<String, String> stringTemplate;
+
+    /**
+     * set the value if token is not older than the token of the last write
+     * @param key the key to set
+     * @param value the value to set
+     * @param token fencing token of the lock held while building the value
+     * @return true if written, false if refused for a newer token
+     */
+    public boolean setIfNewer(String key, String value, String token) {
+        return setIfNewer(key, value, token, null);
+    }
+
+    /**
+     * set the value if token is not older than the token of the last write
+     * @param key the key to set
+     * @param value the value to set
+     * @param token fencing token of the lock held while building the value
+     * @param withExpire expire time of the value, null for never
+     * @return true if written, false if refused for a newer token
+     */
+    public boolean setIfNewer(String key, String value, String token, Duration withExpire) {
+        long expire = withExpire == null ? 0 : withExpire.toMillis();
+        Long written = stringTemplate.execute(SET_IF_NEWER, Arrays.asList(key, key + TOKEN_SUFFIX), value, token, String.valueOf(expire));
+        return written != null && written == 1;
+    }
+}
@@ -0,0 +1,126 @@
+package space.wudi.learncache.zookeeper.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * run every suite and write all results into one JSON file.
+ * <pre>
+ * java -jar target/benchmarks.jar [--suites=lock,publish,propagation,codec] [--members=1|3] [--contenders=1,8,64,512] [--publishers=1,16] [--result=zookeeper-benchmark.json] [--quick]
+ * </pre>
+ * members is 1 for a standalone server or 3 for a quorum. the lock suite runs once per number of contenders,
+ * the publish suite once per number of publishers. the codec suite needs no server, it runs with the gc profiler
+ * and prints the encoded size of each codec. quick shortens warmup and measurement to one second each,
+ * for a smoke run
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        Set<String> suites = new HashSet<>(Arrays.asList("lock", "publish", "propagation", "codec"));
+        String members = "1";
+        int[] contenders = {1, 8, 64, 512};
+        int[] publishers = {1, 16};
+        String result = "zookeeper-benchmark.json";
+        boolean quick = false;
+        for (String arg : args) {
+            if(arg.startsWith("--suites=")){
+                suites = new HashSet<>(Arrays.asList(value(arg).split(",")));
+            }else if(arg.startsWith("--members=")){
+                members = value(arg);
+            }else if(arg.startsWith("--contenders=")){
+                contenders = numbers(value(arg));
+            }else if(arg.startsWith("--publishers=")){
+                publishers = numbers(value(arg));
+            }else if(arg.startsWith("--result=")){
+                result = value(arg);
+            }else if("--quick".equals(arg)){
+                quick = true;
+            }else{
+                throw new IllegalArgumentException("unknown argument " + arg);
+            }
+        }
+
+        List<RunResult> results = new ArrayList<>();
+        if(suites.contains("lock")){
+            for (int threads : contenders) {
+                results.addAll(run(options(members, quick).include(LockBenchmark.class.getName()).threads(threads)));
+            }
+        }
+        if(suites.contains("publish")){
+            for (int threads : publishers) {
+                results.addAll(run(options(members, quick).include(PublishBenchmark.class.getName()).threads(threads)));
+            }
+        }
+        if(suites.contains("propagation")){
+            results.addAll(run(options(members, quick).include(PropagationBenchmark.class.getName())));
+        }
+        if(suites.contains("codec")){
+            results.addAll(run(options(null, quick).include(CodecBenchmark.class.getName()).addProfiler(GCProfiler.class)));
+            printEncodedSizes();
+        }
+
+        try(PrintStream out = new PrintStream(result)){
+            ResultFormatFactory.getInstance(ResultFormatType.JSON, out).writeOut(results);
+        }
+        System.out.println("results written to " + result);
+    }
+
+    /**
+     * @param members number of members, null for suites without a server
+     */
+    private static ChainedOptionsBuilder options(String members, boolean quick) {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .shouldFailOnError(true);
+        if(members != null){
+            options.param("members", members);
+        }
+        if(quick){
+            options.warmupIterations(1)
+                    .warmupTime(TimeValue.seconds(1))
+                    .measurementIterations(1)
+                    .measurementTime(TimeValue.seconds(1));
+        }
+        return options;
+    }
+
+    private static Collection<RunResult> run(ChainedOptionsBuilder options) throws RunnerException {
+        return new Runner(options.build()).run();
+    }
+
+    /**
+     * the size is the same on every run, so it is not measured
+     */
+    private static void printEncodedSizes() throws IOException {
+        for (int length : CodecBenchmark.LENGTHS) {
+            StringJoiner sizes = new StringJoiner(", ");
+            for (String codec : CodecBenchmark.CODECS) {
+                sizes.add(codec + " " + CodecBenchmark.encodedSize(codec, length));
+            }
+            System.out.println("encoded bytes of a config of " + length + " chars: " + sizes);
+        }
+    }
+
+    private static String value(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
+
+    private static int[] numbers(String list) {
+        String[] parts = list.split(",");
+        int[] numbers = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            numbers[i] = Integer.parseInt(parts[i].trim());
+        }
+        return numbers;
+    }
+}
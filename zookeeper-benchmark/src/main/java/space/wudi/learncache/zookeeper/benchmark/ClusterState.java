@@ -0,0 +1,81 @@
+package space.wudi.learncache.zookeeper.benchmark;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import space.wudi.learncache.zookeeper.util.ZooKeeperSession;
+
+import java.io.IOException;
+
+/**
+ * an in-process ensemble for one benchmark run, with {@link ZooKeeperSession} pointing to it
+ */
+@State(Scope.Benchmark)
+public class ClusterState {
+    public static final String CONFIG_ROOT = "/config";
+    private static final String LOCK_ROOT = "/locks";
+    private static final int SESSION_TIMEOUT = 4000;
+
+    /**
+     * 1 for a standalone server, 3 for a quorum
+     */
+    @Param({"1"})
+    public int members;
+
+    private EmbeddedEnsemble ensemble;
+    private ConfigurableApplicationContext context;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        ensemble = EmbeddedEnsemble.start(members);
+        context = connectClients(ensemble.getConnectString());
+        createRoots(ensemble.getConnectString());
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        context.close();
+        ensemble.close();
+    }
+
+    public EmbeddedEnsemble getEnsemble() {
+        return ensemble;
+    }
+
+    /**
+     * the session settings are injected by spring, so start a context with only {@link ZooKeeperSession}
+     * @param servers connection string of the ensemble
+     * @return the context, close it when done
+     */
+    public static ConfigurableApplicationContext connectClients(String servers) {
+        return new SpringApplicationBuilder(ZooKeeperSession.class)
+                .web(WebApplicationType.NONE)
+                .bannerMode(Banner.Mode.OFF)
+                .logStartupInfo(false)
+                .run("--zookeeper.servers=" + servers, "--zookeeper.timeout=" + SESSION_TIMEOUT);
+    }
+
+    /**
+     * the recipes use these roots as chroot, which must exist
+     * @param servers connection string of the ensemble
+     */
+    public static void createRoots(String servers) throws IOException, InterruptedException, KeeperException {
+        ZooKeeper zk = ZooKeeperSession.newZooKeeperClient("");
+        try {
+            for (String root : new String[]{LOCK_ROOT, CONFIG_ROOT}) {
+                try {
+                    zk.create(root, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                } catch (KeeperException.NodeExistsException ignore) {
+                }
+            }
+        } finally {
+            zk.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package space.wudi.learncache.zookeeper.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import space.wudi.learncache.zookeeper.configmanager.BinaryCodec;
+import space.wudi.learncache.zookeeper.configmanager.Codec;
+import space.wudi.learncache.zookeeper.configmanager.Codecs;
+import space.wudi.learncache.zookeeper.configmanager.Config;
+import space.wudi.learncache.zookeeper.configmanager.JavaSerializationCodec;
+import space.wudi.learncache.zookeeper.configmanager.JsonCodec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * encode and decode one config with each codec, no zookeeper involved.
+ * run with the gc profiler for the allocation per operation, see {@link BenchmarkRunner}.
+ * the encoded size does not vary, see {@link #encodedSize(String, int)}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    public static final String[] CODECS = {"java", "binary", "json"};
+    public static final int[] LENGTHS = {16, 1024};
+
+    @Param({"java", "binary", "json"})
+    public String codec;
+
+    /**
+     * length of the config string
+     */
+    @Param({"16", "1024"})
+    public int length;
+
+    private Codec selected;
+    private Config config;
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        selected = codec(codec);
+        config = config(length);
+        data = selected.encode(config);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return selected.encode(config);
+    }
+
+    /**
+     * as a listener does, finding the codec by the format tag
+     */
+    @Benchmark
+    public Config decode() throws IOException {
+        return Codecs.decode(data);
+    }
+
+    /**
+     * @return bytes in the node for a config string of length
+     */
+    public static int encodedSize(String codec, int length) throws IOException {
+        return codec(codec).encode(config(length)).length;
+    }
+
+    private static Codec codec(String name) {
+        switch(name){
+            case "java":
+                return new JavaSerializationCodec();
+            case "binary":
+                return new BinaryCodec();
+            case "json":
+                return new JsonCodec();
+            default:
+                throw new IllegalArgumentException("unknown codec " + name);
+        }
+    }
+
+    private static Config config(int length) {
+        char[] value = new char[length];
+        Arrays.fill(value, 'x');
+        return new Config(new String(value));
+    }
+}
@@ -0,0 +1,289 @@
+package space.wudi.learncache.zookeeper.benchmark;
+
+import org.apache.zookeeper.server.ServerConfig;
+import org.apache.zookeeper.server.ZooKeeperServerMain;
+import org.apache.zookeeper.server.quorum.QuorumPeer;
+import org.apache.zookeeper.server.quorum.QuorumPeerConfig;
+import org.apache.zookeeper.server.quorum.QuorumPeerMain;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.StringJoiner;
+
+/**
+ * zookeeper servers in this process on localhost, a standalone server or a quorum.
+ * <br/>
+ * Each member runs in its own thread with its own data directory under a temporary directory.
+ * A member can be stopped and started again with its data, to see how clients get through a failover.
+ */
+public class EmbeddedEnsemble implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddedEnsemble.class);
+    /**
+     * short ticks so elections and session expiry do not take long
+     */
+    private static final int TICK_TIME = 200;
+    private static final long START_TIMEOUT = 30000;
+
+    private final File baseDir;
+    private final Member[] members;
+
+    private EmbeddedEnsemble(int size) throws IOException {
+        this.baseDir = Files.createTempDirectory("zookeeper-ensemble").toFile();
+        this.members = new Member[size];
+        Properties properties = new Properties();
+        properties.setProperty("tickTime", String.valueOf(TICK_TIME));
+        properties.setProperty("initLimit", "10");
+        properties.setProperty("syncLimit", "5");
+        properties.setProperty("maxClientCnxns", "0");
+        properties.setProperty("4lw.commands.whitelist", "srvr");
+        for (int i = 0; i < size; i++) {
+            members[i] = new Member(i + 1, new File(baseDir, "member" + (i + 1)), freePort());
+        }
+        if(size > 1){
+            for (Member member : members) {
+                properties.setProperty("server." + member.id, "127.0.0.1:" + freePort() + ":" + freePort());
+            }
+        }
+        for (Member member : members) {
+            member.properties = new Properties();
+            member.properties.putAll(properties);
+            member.properties.setProperty("dataDir", member.dataDir.getAbsolutePath());
+            member.properties.setProperty("clientPort", String.valueOf(member.clientPort));
+        }
+    }
+
+    /**
+     * start servers and wait until all of them serve
+     * @param size 1 for a standalone server, or the number of quorum members
+     * @return the running ensemble
+     * @throws IOException if a server cannot start
+     */
+    public static EmbeddedEnsemble start(int size) throws IOException {
+        // no jetty on the classpath
+        System.setProperty("zookeeper.admin.enableServer", "false");
+        EmbeddedEnsemble ensemble = new EmbeddedEnsemble(size);
+        for (Member member : ensemble.members) {
+            member.start();
+        }
+        for (Member member : ensemble.members) {
+            member.awaitServing();
+        }
+        logger.info("ensemble of {} started at {}", size, ensemble.getConnectString());
+        return ensemble;
+    }
+
+    /**
+     * @return connection string of all members, like "127.0.0.1:port1,127.0.0.1:port2"
+     */
+    public String getConnectString() {
+        StringJoiner joiner = new StringJoiner(",");
+        for (Member member : members) {
+            joiner.add("127.0.0.1:" + member.clientPort);
+        }
+        return joiner.toString();
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    /**
+     * @param member index of the member, from 0
+     * @return "leader", "follower" or "standalone", null if not serving
+     */
+    public String mode(int member) {
+        return members[member].mode();
+    }
+
+    /**
+     * stop a member, keeping its data
+     * @param member index of the member, from 0
+     */
+    public void stop(int member) {
+        members[member].stop();
+    }
+
+    /**
+     * start a stopped member again and wait until it serves
+     * @param member index of the member, from 0
+     * @throws IOException if the server cannot start
+     */
+    public void restart(int member) throws IOException {
+        members[member].start();
+        members[member].awaitServing();
+    }
+
+    @Override
+    public void close() {
+        for (Member member : members) {
+            member.stop();
+        }
+        deleteRecursively(baseDir);
+    }
+
+    private static int freePort() throws IOException {
+        try(ServerSocket socket = new ServerSocket(0)){
+            socket.setReuseAddress(true);
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if(children != null){
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if(!file.delete()){
+            logger.debug("cannot delete {}", file);
+        }
+    }
+
+    /**
+     * one server of the ensemble
+     */
+    private class Member {
+        private final int id;
+        private final File dataDir;
+        private final int clientPort;
+        private Properties properties;
+        private Thread thread;
+        /**
+         * stops the running server, null if not running
+         */
+        private volatile Runnable shutdown;
+
+        Member(int id, File dataDir, int clientPort) {
+            this.id = id;
+            this.dataDir = dataDir;
+            this.clientPort = clientPort;
+        }
+
+        synchronized void start() throws IOException {
+            if(thread != null){
+                return;
+            }
+            if(!dataDir.isDirectory() && !dataDir.mkdirs()){
+                throw new IOException("cannot create " + dataDir);
+            }
+            QuorumPeerConfig config = new QuorumPeerConfig();
+            try {
+                if(members.length > 1){
+                    Files.write(new File(dataDir, "myid").toPath(), String.valueOf(id).getBytes(StandardCharsets.US_ASCII));
+                }
+                config.parseProperties(properties);
+            } catch (QuorumPeerConfig.ConfigException e) {
+                throw new IOException(e);
+            }
+            thread = new Thread(members.length > 1 ? () -> runQuorumPeer(config) : () -> runStandalone(config), "zookeeper-member-" + id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void runStandalone(QuorumPeerConfig config) {
+            ServerConfig serverConfig = new ServerConfig();
+            serverConfig.readFrom(config);
+            StandaloneServer server = new StandaloneServer();
+            shutdown = server::shutdown;
+            try {
+                server.runFromConfig(serverConfig);
+            } catch (Exception e) {
+                logger.warn("member {} stopped with exception", id, e);
+            }
+        }
+
+        private void runQuorumPeer(QuorumPeerConfig config) {
+            QuorumServer server = new QuorumServer();
+            shutdown = server::shutdown;
+            try {
+                server.runFromConfig(config);
+            } catch (Exception e) {
+                logger.warn("member {} stopped with exception", id, e);
+            }
+        }
+
+        synchronized void stop() {
+            if(thread == null){
+                return;
+            }
+            Runnable shutdown = this.shutdown;
+            if(shutdown != null){
+                shutdown.run();
+            }
+            try {
+                thread.join(START_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+            this.shutdown = null;
+            logger.info("member {} stopped", id);
+        }
+
+        void awaitServing() throws IOException {
+            long deadline = System.currentTimeMillis() + START_TIMEOUT;
+            while(mode() == null){
+                if(System.currentTimeMillis() > deadline){
+                    throw new IOException("member " + id + " does not serve in " + START_TIMEOUT + "ms");
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        /**
+         * ask the member by the four letter word srvr
+         */
+        String mode() {
+            try(Socket socket = new Socket()){
+                socket.connect(new InetSocketAddress("127.0.0.1", clientPort), 1000);
+                socket.setSoTimeout(1000);
+                socket.getOutputStream().write("srvr".getBytes(StandardCharsets.US_ASCII));
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                String line;
+                while((line = reader.readLine()) != null){
+                    if(line.startsWith("Mode: ")){
+                        return line.substring("Mode: ".length());
+                    }
+                }
+                return null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * opens the protected shutdown
+     */
+    private static class StandaloneServer extends ZooKeeperServerMain {
+        @Override
+        protected void shutdown() {
+            super.shutdown();
+        }
+    }
+
+    /**
+     * keeps the peer to shut it down
+     */
+    private static class QuorumServer extends QuorumPeerMain {
+        void shutdown() {
+            QuorumPeer peer = quorumPeer;
+            if(peer != null){
+                peer.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package space.wudi.learncache.zookeeper.benchmark;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ConfigurableApplicationContext;
+import space.wudi.learncache.zookeeper.configmanager.Config;
+import space.wudi.learncache.zookeeper.configmanager.ConfigListener;
+import space.wudi.learncache.zookeeper.configmanager.ConfigPublisher;
+import space.wudi.learncache.zookeeper.lock.Lock;
+import space.wudi.learncache.zookeeper.util.ZooKeeperResult;
+import space.wudi.learncache.zookeeper.util.ZooKeeperSession;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * a long running load against a quorum of 3 in this process, stopping and starting members under it.
+ * <pre>
+ * java -cp target/benchmarks.jar space.wudi.learncache.zookeeper.benchmark.FailoverSoak
+ *      [--duration=600] [--interval=30] [--down=10] [--lockers=16] [--paths=8] [--target=alternate|leader|follower]
+ * </pre>
+ * Lockers take and release one lock name in a loop, one publisher updates the config paths round robin,
+ * and one listener keeps watching all of them. Every interval seconds a member is stopped, the leader or a follower
+ * as the target says, and started again after down seconds.
+ * <br/>
+ * Reported at the end:
+ * <ul>
+ *     <li>per fault and per recipe, the lowest throughput after the stop against the throughput before it,
+ *     and the time from the stop until the throughput is back</li>
+ *     <li>lock acquisitions timed out or failed, and two holders inside the lock at once</li>
+ *     <li>config paths whose last published value never reaches the listener, that is the watch is lost</li>
+ *     <li>lock nodes still there after every locker has unlocked</li>
+ * </ul>
+ */
+public class FailoverSoak {
+    private static final Logger logger = LoggerFactory.getLogger(FailoverSoak.class);
+    private static final String LOCK_NAME = "soak";
+    private static final String CONFIG_PREFIX = "/soak/";
+    private static final long BUCKET_MILLIS = 500;
+    /**
+     * throughput before a fault is the mean of this long
+     */
+    private static final long BASELINE_MILLIS = 5000;
+    /**
+     * back to this share of the baseline counts as recovered
+     */
+    private static final double RECOVERED = 0.8;
+    private static final long LOCK_TIMEOUT = 5000;
+    private static final long HOLD_MILLIS = 1;
+    private static final long PUBLISH_PERIOD = 10;
+    /**
+     * time for the listener to catch up at the end
+     */
+    private static final long SETTLE_MILLIS = 10000;
+
+    private final long duration;
+    private final long interval;
+    private final long down;
+    private final int lockers;
+    private final int paths;
+    private final String target;
+
+    private volatile boolean running = true;
+    private long startedAt;
+    private final Timeline locked;
+    private final Timeline published;
+    private final AtomicLong lockTimeouts = new AtomicLong();
+    private final AtomicLong lockErrors = new AtomicLong();
+    private final AtomicLong lockViolations = new AtomicLong();
+    private final AtomicInteger insideLock = new AtomicInteger();
+    private final AtomicLong publishFailures = new AtomicLong();
+    private final AtomicLong listenFailures = new AtomicLong();
+    /**
+     * last value published successfully and last value the listener got, per config path
+     */
+    private final AtomicLongArray lastPublished;
+    private final AtomicLongArray lastSeen;
+    private final List<Fault> faults = new ArrayList<>();
+
+    private FailoverSoak(long duration, long interval, long down, int lockers, int paths, String target) {
+        this.duration = duration;
+        this.interval = interval;
+        this.down = down;
+        this.lockers = lockers;
+        this.paths = paths;
+        this.target = target;
+        int buckets = (int)((duration + SETTLE_MILLIS) / BUCKET_MILLIS) + 1;
+        this.locked = new Timeline(buckets);
+        this.published = new Timeline(buckets);
+        this.lastPublished = new AtomicLongArray(paths);
+        this.lastSeen = new AtomicLongArray(paths);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long duration = 600, interval = 30, down = 10;
+        int lockers = 16, paths = 8;
+        String target = "alternate";
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if(arg.startsWith("--duration=")){
+                duration = Long.parseLong(value);
+            }else if(arg.startsWith("--interval=")){
+                interval = Long.parseLong(value);
+            }else if(arg.startsWith("--down=")){
+                down = Long.parseLong(value);
+            }else if(arg.startsWith("--lockers=")){
+                lockers = Integer.parseInt(value);
+            }else if(arg.startsWith("--paths=")){
+                paths = Integer.parseInt(value);
+            }else if(arg.startsWith("--target=")){
+                target = value;
+            }else{
+                throw new IllegalArgumentException("unknown argument " + arg);
+            }
+        }
+        if(interval * 1000 < down * 1000 + BASELINE_MILLIS){
+            throw new IllegalArgumentException("interval must leave " + BASELINE_MILLIS + "ms of steady load after a member is back");
+        }
+        new FailoverSoak(duration * 1000, interval * 1000, down * 1000, lockers, paths, target).run();
+        // sessions of the recipes are pooled by a static pool and keep the jvm alive
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        try(EmbeddedEnsemble ensemble = EmbeddedEnsemble.start(3)){
+            ConfigurableApplicationContext context = ClusterState.connectClients(ensemble.getConnectString());
+            ClusterState.createRoots(ensemble.getConnectString());
+            ConfigPublisher publisher = new ConfigPublisher(ClusterState.CONFIG_ROOT);
+            ConfigListener listener = new ConfigListener(ClusterState.CONFIG_ROOT);
+            for (int i = 0; i < paths; i++) {
+                publish(publisher, i);
+            }
+            for (int i = 0; i < paths; i++) {
+                listen(listener, i);
+            }
+
+            startedAt = System.nanoTime();
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < lockers; i++) {
+                workers.add(start("soak-locker-" + i, this::lockLoop));
+            }
+            workers.add(start("soak-publisher", () -> publishLoop(publisher)));
+            logger.info("load started: {} lockers, {} config paths, {}s", lockers, paths, duration / 1000);
+
+            injectFaults(ensemble);
+
+            running = false;
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            // one more value on every path with all members up, which a working watch delivers
+            for (int i = 0; i < paths; i++) {
+                publish(publisher, i);
+            }
+            long lostWatches = awaitListener();
+            List<String> orphans = orphanLockNodes();
+            report(lostWatches, orphans);
+
+            listener.close();
+            publisher.close();
+            context.close();
+        }
+    }
+
+    private static Thread start(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * stop a member every interval and start it again after down, until the duration is over
+     */
+    private void injectFaults(EmbeddedEnsemble ensemble) throws Exception {
+        long next = interval;
+        while(next + down + BASELINE_MILLIS <= duration){
+            sleepUntil(next);
+            int member = pickMember(ensemble, faults.size());
+            Fault fault = new Fault(member + 1, ensemble.mode(member), elapsed());
+            logger.info("stopping member {} ({}) at {}ms", fault.member, fault.mode, fault.stoppedAt);
+            ensemble.stop(member);
+            sleepUntil(fault.stoppedAt + down);
+            ensemble.restart(member);
+            fault.restartedAt = elapsed();
+            logger.info("member {} serves again at {}ms", fault.member, fault.restartedAt);
+            faults.add(fault);
+            next += interval;
+        }
+        sleepUntil(duration);
+    }
+
+    private int pickMember(EmbeddedEnsemble ensemble, int round) {
+        boolean leader = "leader".equals(target) || ("alternate".equals(target) && round % 2 == 0);
+        int follower = -1;
+        for (int i = 0; i < ensemble.size(); i++) {
+            String mode = ensemble.mode(i);
+            if("leader".equals(mode) && leader){
+                return i;
+            }
+            if("follower".equals(mode) && !leader && follower < 0){
+                follower = i;
+            }
+        }
+        return follower >= 0 ? follower : round % ensemble.size();
+    }
+
+    private void lockLoop() {
+        Lock lock = new Lock(LOCK_NAME);
+        while(running){
+            try {
+                if(!lock.tryLock(LOCK_TIMEOUT, TimeUnit.MILLISECONDS)){
+                    lockTimeouts.incrementAndGet();
+                    continue;
+                }
+                try {
+                    if(insideLock.incrementAndGet() > 1){
+                        lockViolations.incrementAndGet();
+                    }
+                    Thread.sleep(HOLD_MILLIS);
+                } finally {
+                    insideLock.decrementAndGet();
+                    lock.unlock();
+                }
+                locked.add(elapsed());
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable e) {
+                lockErrors.incrementAndGet();
+                logger.debug("lock failed", e);
+            }
+        }
+    }
+
+    private void publishLoop(ConfigPublisher publisher) {
+        int path = 0;
+        while(running){
+            try {
+                if(publish(publisher, path)){
+                    published.add(elapsed());
+                }
+                path = (path + 1) % paths;
+                Thread.sleep(PUBLISH_PERIOD);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                publishFailures.incrementAndGet();
+                logger.debug("publish failed", e);
+            }
+        }
+    }
+
+    /**
+     * publish the next value of a path
+     * @return true if published
+     */
+    private boolean publish(ConfigPublisher publisher, int path) throws Exception {
+        long value = lastPublished.get(path) + 1;
+        ZooKeeperResult<String> result = publisher.publish(new Config(String.valueOf(value)), CONFIG_PREFIX + path, null);
+        if(result.getCode() != KeeperException.Code.OK){
+            publishFailures.incrementAndGet();
+            return false;
+        }
+        lastPublished.set(path, value);
+        return true;
+    }
+
+    private void listen(ConfigListener listener, int path) throws Exception {
+        listener.listen(CONFIG_PREFIX + path, result -> {
+            Config config = result.getData();
+            if(result.getCode() != KeeperException.Code.OK || config == null){
+                // the watch is set together with the read, so it is gone as well
+                listenFailures.incrementAndGet();
+                return;
+            }
+            lastSeen.accumulateAndGet(path, Long.parseLong(config.getConfig()), Math::max);
+        }, true, null, null, p -> true, p -> true);
+    }
+
+    /**
+     * @return paths whose last value has not reached the listener in time
+     */
+    private long awaitListener() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        long behind;
+        do {
+            behind = 0;
+            for (int i = 0; i < paths; i++) {
+                if(lastSeen.get(i) < lastPublished.get(i)){
+                    behind++;
+                }
+            }
+            if(behind == 0){
+                break;
+            }
+            Thread.sleep(100);
+        } while(System.currentTimeMillis() < deadline);
+        return behind;
+    }
+
+    /**
+     * every locker has unlocked, so nodes left in the lock directory are orphans
+     * @return the left nodes, with the sessions owning them
+     */
+    private List<String> orphanLockNodes() throws Exception {
+        // removing the node of a cancelled wait is not waited for
+        Thread.sleep(1000);
+        ZooKeeper zk = ZooKeeperSession.newZooKeeperClient("");
+        try {
+            List<String> orphans = new ArrayList<>();
+            String directory = "/locks/" + LOCK_NAME;
+            List<String> children;
+            try {
+                children = zk.getChildren(directory, false);
+            } catch (KeeperException.NoNodeException e) {
+                return Collections.emptyList();
+            }
+            for (String child : children) {
+                Stat stat = zk.exists(directory + "/" + child, false);
+                if(stat != null){
+                    orphans.add(child + " of session 0x" + Long.toHexString(stat.getEphemeralOwner()));
+                }
+            }
+            return orphans;
+        } finally {
+            zk.close();
+        }
+    }
+
+    private void report(long lostWatches, List<String> orphans) {
+        logger.info("==== failover soak: {}s, {} faults ====", duration / 1000, faults.size());
+        for (Fault fault : faults) {
+            logger.info("member {} ({}) stopped at {}s for {}ms", fault.member, fault.mode, fault.stoppedAt / 1000, fault.restartedAt - fault.stoppedAt);
+            long until = fault.stoppedAt + interval;
+            logger.info("    lock:    {}", locked.dip(fault.stoppedAt, until));
+            logger.info("    publish: {}", published.dip(fault.stoppedAt, until));
+        }
+        logger.info("locks: {} gained, {} timed out, {} failed, {} times held by two",
+                locked.total(), lockTimeouts.get(), lockErrors.get(), lockViolations.get());
+        logger.info("configs: {} published, {} failed, {} reads failed in the listener",
+                published.total(), publishFailures.get(), listenFailures.get());
+        logger.info("lost watches: {} of {} paths never got their last value", lostWatches, paths);
+        logger.info("orphaned lock nodes: {} {}", orphans.size(), orphans);
+    }
+
+    private long elapsed() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    }
+
+    private void sleepUntil(long millis) throws InterruptedException {
+        long left = millis - elapsed();
+        if(left > 0){
+            Thread.sleep(left);
+        }
+    }
+
+    /**
+     * one stopped member
+     */
+    private static class Fault {
+        private final int member;
+        private final String mode;
+        private final long stoppedAt;
+        private long restartedAt;
+
+        Fault(int member, String mode, long stoppedAt) {
+            this.member = member;
+            this.mode = mode;
+            this.stoppedAt = stoppedAt;
+        }
+    }
+
+    /**
+     * completions counted in buckets of {@link #BUCKET_MILLIS} since the load started
+     */
+    private static class Timeline {
+        private final AtomicLongArray buckets;
+
+        Timeline(int size) {
+            this.buckets = new AtomicLongArray(size);
+        }
+
+        void add(long elapsed) {
+            int bucket = (int)(elapsed / BUCKET_MILLIS);
+            if(bucket < buckets.length()){
+                buckets.incrementAndGet(bucket);
+            }
+        }
+
+        long total() {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                total += buckets.get(i);
+            }
+            return total;
+        }
+
+        /**
+         * compare the throughput after from with the one before it
+         * @param from when the fault starts
+         * @param until when the next fault starts
+         * @return a line with the baseline, the lowest bucket and the recovery time
+         */
+        String dip(long from, long until) {
+            int first = (int)(from / BUCKET_MILLIS);
+            int last = Math.min((int)(until / BUCKET_MILLIS), buckets.length());
+            int baselineBuckets = (int)(BASELINE_MILLIS / BUCKET_MILLIS);
+            double baseline = 0;
+            for (int i = Math.max(0, first - baselineBuckets); i < first; i++) {
+                baseline += buckets.get(i);
+            }
+            baseline /= baselineBuckets;
+            int lowest = first;
+            for (int i = first; i < last; i++) {
+                if(buckets.get(i) < buckets.get(lowest)){
+                    lowest = i;
+                }
+            }
+            long recovery = -1;
+            if(buckets.get(lowest) >= baseline * RECOVERED){
+                recovery = 0;
+            }else{
+                for (int i = lowest + 1; i < last; i++) {
+                    if(buckets.get(i) >= baseline * RECOVERED){
+                        recovery = (i + 1) * BUCKET_MILLIS - from;
+                        break;
+                    }
+                }
+            }
+            double perSecond = 1000.0 / BUCKET_MILLIS;
+            return String.format("before %.0f/s, lowest %.0f/s (%.0f%%), recovered %s",
+                    baseline * perSecond, buckets.get(lowest) * perSecond,
+                    baseline == 0 ? 100 : 100 * buckets.get(lowest) / baseline,
+                    recovery < 0 ? "never" : "in " + recovery + "ms");
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package space.wudi.learncache.zookeeper.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import space.wudi.learncache.zookeeper.lock.Lock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * acquire and release one lock name from every benchmark thread.
+ * run with -t to set the number of contenders, see {@link BenchmarkRunner}
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+public class LockBenchmark {
+    private static final String LOCK_NAME = "benchmark";
+
+    @Benchmark
+    public void acquireRelease(ClusterState cluster) throws Throwable {
+        Lock lock = new Lock(LOCK_NAME);
+        lock.lock();
+        lock.unlock();
+    }
+}
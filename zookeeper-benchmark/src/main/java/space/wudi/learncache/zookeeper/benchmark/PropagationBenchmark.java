@@ -0,0 +1,61 @@
+package space.wudi.learncache.zookeeper.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import space.wudi.learncache.zookeeper.configmanager.Config;
+import space.wudi.learncache.zookeeper.configmanager.ConfigListener;
+import space.wudi.learncache.zookeeper.configmanager.ConfigPublisher;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * time from publishing a config until the listener callback gets it
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Threads(1)
+@State(Scope.Benchmark)
+public class PropagationBenchmark {
+    private static final String PATH = "/propagation";
+
+    private ConfigPublisher publisher;
+    private ConfigListener listener;
+    private long version;
+    /**
+     * the config being waited for, and the future completed when the listener gets it
+     */
+    private volatile String expected;
+    private volatile CompletableFuture<Void> received = new CompletableFuture<>();
+
+    @Setup(Level.Trial)
+    public void start(ClusterState cluster) throws Exception {
+        publisher = new ConfigPublisher(ClusterState.CONFIG_ROOT);
+        listener = new ConfigListener(ClusterState.CONFIG_ROOT);
+        publisher.publish(new Config("initial"), PATH, null);
+        listener.listen(PATH, result -> {
+            Config config = result.getData();
+            if(config != null && config.getConfig().equals(expected)){
+                received.complete(null);
+            }
+        }, true, null, null, path -> true, path -> true);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        listener.close();
+        publisher.close();
+    }
+
+    @Benchmark
+    public void publishToCallback() throws Exception {
+        CompletableFuture<Void> received = new CompletableFuture<>();
+        String value = "version " + version++;
+        this.received = received;
+        expected = value;
+        publisher.publish(new Config(value), PATH, null);
+        received.get(10, TimeUnit.SECONDS);
+    }
+}
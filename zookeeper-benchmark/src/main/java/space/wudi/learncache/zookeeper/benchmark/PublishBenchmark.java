@@ -0,0 +1,48 @@
+package space.wudi.learncache.zookeeper.benchmark;
+
+import org.apache.zookeeper.KeeperException.Code;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+import space.wudi.learncache.zookeeper.configmanager.Config;
+import space.wudi.learncache.zookeeper.configmanager.ConfigPublisher;
+import space.wudi.learncache.zookeeper.util.ZooKeeperResult;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * publish a config again and again, every benchmark thread to its own path
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+public class PublishBenchmark {
+
+    @State(Scope.Thread)
+    public static class PublisherState {
+        private ConfigPublisher publisher;
+        private String path;
+        private long version;
+
+        @Setup(Level.Trial)
+        public void start(ClusterState cluster, ThreadParams thread) throws Exception {
+            publisher = new ConfigPublisher(ClusterState.CONFIG_ROOT);
+            path = "/publish/" + thread.getThreadIndex();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            publisher.close();
+        }
+    }
+
+    @Benchmark
+    public ZooKeeperResult<String> publish(PublisherState state) throws Exception {
+        ZooKeeperResult<String> result = state.publisher.publish(new Config("version " + state.version++), state.path, null);
+        if(result.getCode() != Code.OK){
+            throw new IllegalStateException("publish failed: " + result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,113 @@
+package space.wudi.learncache.zookeeper;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import space.wudi.learncache.zookeeper.lock.HierarchicalLock;
+import space.wudi.learncache.zookeeper.lock.Lock;
+import space.wudi.learncache.zookeeper.util.ZooKeeperSession;
+
+/**
+ * compare lock acquisitions per second of
+ * a new session per call (the way Lock used to connect) and the shared session pool.
+ * then compare Lock and HierarchicalLock when all threads contend for one lock name
+ */
+@SuppressWarnings("all")
+@SpringBootApplication
+public class LockBenchmarkApplication {
+    private static final Logger logger = LoggerFactory.getLogger(LockBenchmarkApplication.class);
+    private static final int ThreadCount = 8;
+    private static final int Rounds = 50;
+
+    interface Acquisition {
+        void acquireAndRelease(String lockName) throws Throwable;
+    }
+
+    public static void main(String[] args) throws Throwable {
+        SpringApplication.run(LockBenchmarkApplication.class);
+        // warm up the pool so handshakes are not counted
+        runRounds("warmup", 1, 1, LockBenchmarkApplication::pooledSessions);
+
+        double before = runRounds("session per call", ThreadCount, Rounds, LockBenchmarkApplication::sessionPerCall);
+        double after = runRounds("pooled session", ThreadCount, Rounds, LockBenchmarkApplication::pooledSessions);
+        logger.warn("+++++++acquisitions/sec: session per call = {}, pooled session = {}", String.format("%.1f", before), String.format("%.1f", after));
+
+        // every thread uses the same lock name
+        double distributed = runRounds("contended lock", ThreadCount, Rounds, lockName -> pooledSessions("benchmark"));
+        double hierarchical = runRounds("contended hierarchical lock", ThreadCount, Rounds, lockName -> hierarchicalLock("benchmark"));
+        logger.warn("+++++++contended acquisitions/sec: lock = {}, hierarchical lock = {}", String.format("%.1f", distributed), String.format("%.1f", hierarchical));
+        System.exit(0);
+    }
+
+    /**
+     * run threads, each acquires and releases its own lock for rounds times
+     * @return acquisitions per second
+     */
+    private static double runRounds(String name, int threadCount, int rounds, Acquisition acquisition) throws InterruptedException {
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            String lockName = "benchmark" + i;
+            threads[i] = new Thread(()->{
+                try {
+                    for (int j = 0; j < rounds; j++) {
+                        acquisition.acquireAndRelease(lockName);
+                    }
+                } catch (Throwable throwable) {
+                    throwable.printStackTrace();
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double perSecond = threadCount * rounds / seconds;
+        logger.info("{}: {} acquisitions in {}s", name, threadCount * rounds, String.format("%.3f", seconds));
+        return perSecond;
+    }
+
+    /**
+     * what an uncontended acquisition used to cost:
+     * one handshake for the lock node and another one for listing children
+     */
+    private static void sessionPerCall(String lockName) throws Throwable {
+        ZooKeeper zk = ZooKeeperSession.newZooKeeperClient("/locks");
+        try {
+            try {
+                zk.create("/" + lockName, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            } catch (KeeperException.NodeExistsException ignore) {
+            }
+            String node = zk.create("/" + lockName + "/" + lockName, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+            ZooKeeper another = ZooKeeperSession.newZooKeeperClient("/locks");
+            try {
+                another.getChildren("/" + lockName, false);
+            } finally {
+                another.close();
+            }
+            zk.delete(node, -1);
+        } finally {
+            zk.close();
+        }
+    }
+
+    private static void pooledSessions(String lockName) throws Throwable {
+        Lock lock = new Lock(lockName);
+        lock.lock();
+        lock.unlock();
+    }
+
+    private static void hierarchicalLock(String lockName) throws Throwable {
+        HierarchicalLock lock = new HierarchicalLock(lockName);
+        lock.lock();
+        lock.unlock();
+    }
+}
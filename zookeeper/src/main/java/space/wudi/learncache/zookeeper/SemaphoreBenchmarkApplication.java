@@ -0,0 +1,69 @@
+package space.wudi.learncache.zookeeper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import space.wudi.learncache.zookeeper.lock.Semaphore;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * measure rebuilds per second through a Semaphore while sweeping the permits.
+ * every thread holds a permit for a while, like rebuilding a cache entry.
+ * the time varies around WorkMillis, so permits are given back out of order
+ */
+@SuppressWarnings("all")
+@SpringBootApplication
+public class SemaphoreBenchmarkApplication {
+    private static final Logger logger = LoggerFactory.getLogger(SemaphoreBenchmarkApplication.class);
+    private static final int ThreadCount = 16;
+    private static final int Rounds = 10;
+    private static final long WorkMillis = 50;
+    private static final int[] Permits = {1, 2, 4, 8, 16};
+
+    public static void main(String[] args) throws Throwable {
+        SpringApplication.run(SemaphoreBenchmarkApplication.class);
+        // warm up the pool so handshakes are not counted
+        runRounds(1, 1);
+        for (int permits : Permits) {
+            runRounds(permits, Rounds);
+        }
+        System.exit(0);
+    }
+
+    private static void runRounds(int permits, int rounds) throws InterruptedException {
+        // a new name per run. a semaphore name must not be reused with other permits
+        String name = "semaphore-benchmark-" + permits + "-" + System.nanoTime();
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger mostInside = new AtomicInteger();
+        Thread[] threads = new Thread[ThreadCount];
+        for (int i = 0; i < ThreadCount; i++) {
+            threads[i] = new Thread(()->{
+                try {
+                    for (int j = 0; j < rounds; j++) {
+                        Semaphore semaphore = new Semaphore(name, permits);
+                        semaphore.acquire();
+                        mostInside.accumulateAndGet(inside.incrementAndGet(), Math::max);
+                        Thread.sleep(ThreadLocalRandom.current().nextLong(WorkMillis / 2, WorkMillis * 3 / 2));
+                        inside.decrementAndGet();
+                        semaphore.release();
+                    }
+                } catch (Throwable throwable) {
+                    throwable.printStackTrace();
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        logger.warn("+++++++permits = {}: {} acquisitions/sec, at most {} inside", permits,
+                String.format("%.1f", ThreadCount * rounds / seconds), mostInside.get());
+    }
+}
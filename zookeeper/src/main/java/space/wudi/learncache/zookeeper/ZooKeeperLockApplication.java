@@ -6,32 +6,46 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import space.wudi.learncache.zookeeper.lock.Lock;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 @SuppressWarnings("all")
 @SpringBootApplication
 public class ZooKeeperLockApplication {
     private static Logger logger = LoggerFactory.getLogger(ZooKeeperLockApplication.class);
     public static void main(String[] args) {
         SpringApplication.run(ZooKeeperLockApplication.class);
-        final int ThreadCount = 5;
-        Thread[] threads = new Thread[ThreadCount];
-        for (int i = 0; i < ThreadCount; i++) {
-            threads[i] = new Thread(()->{
-                Lock lock = new Lock("mylock1");
-                try {
-                    lock.lock();
-                    logger.warn("+++++++Thread {} gain lock", Thread.currentThread().getName());
-                    Thread.sleep(2000);
-                    logger.info("+++++++Thread {} start to release lock", Thread.currentThread().getName());
-                } catch (Throwable throwable) {
-                    throwable.printStackTrace();
-                }finally {
-                    lock.unlock();
+        final int ContenderCount = 5;
+        // contenders wait without a thread. one thread is enough to release the locks later
+        ScheduledExecutorService releaser = Executors.newSingleThreadScheduledExecutor();
+        for (int i = 0; i < ContenderCount; i++) {
+            String contender = "Contender-" + i;
+            Lock lock = new Lock("mylock1");
+            lock.lockAsync().thenAccept(result -> {
+                if(result.getThrowable() != null){
+                    result.getThrowable().printStackTrace();
+                    return;
                 }
+                logger.warn("+++++++{} gain lock", contender);
+                releaser.schedule(() -> {
+                    logger.info("+++++++{} start to release lock", contender);
+                    lock.unlockAsync();
+                }, 2000, TimeUnit.MILLISECONDS);
             });
         }
 
-        for (Thread thread: threads) {
-            thread.start();
+        // this one gives up before its turn. its queued node is removed at once
+        try {
+            Lock impatient = new Lock("mylock1");
+            if(impatient.tryLock(500, TimeUnit.MILLISECONDS)){
+                logger.warn("+++++++Impatient gain lock");
+                impatient.unlock();
+            }else{
+                logger.warn("+++++++Impatient gives up");
+            }
+        } catch (Throwable throwable) {
+            throwable.printStackTrace();
         }
 
         try{
@@ -0,0 +1,52 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * the default codec. the format tag, then the config string as a length-prefixed UTF-8 string.
+ * <pre>
+ * | 0x01 | length: int32, -1 for null | UTF-8 bytes |
+ * </pre>
+ */
+public class BinaryCodec implements Codec {
+    public static final byte FORMAT = 0x01;
+    private static final int HEADER = 1 + Integer.BYTES;
+    private static final int NULL = -1;
+
+    @Override
+    public byte getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public byte[] encode(Config config) {
+        String value = config.getConfig();
+        if(value == null){
+            return ByteBuffer.allocate(HEADER).put(FORMAT).putInt(NULL).array();
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(HEADER + bytes.length).put(FORMAT).putInt(bytes.length).put(bytes).array();
+    }
+
+    @Override
+    public Config decode(byte[] data) throws IOException {
+        return decode(data, 0, data.length);
+    }
+
+    @Override
+    public Config decode(byte[] data, int offset, int length) throws IOException {
+        if(length < HEADER || data[offset] != FORMAT){
+            throw new IOException("not of binary format");
+        }
+        int size = (data[offset + 1] & 0xff) << 24 | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 8 | (data[offset + 4] & 0xff);
+        if(size == NULL){
+            return new Config(null);
+        }
+        if(size < 0 || size > length - HEADER){
+            throw new IOException("length " + size + " out of data of " + length + " bytes");
+        }
+        return new Config(new String(data, offset + HEADER, size, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,135 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+/**
+ * the data of a config node published in chunks, telling where the chunks are.
+ * <pre>
+ * | 0x03 | generation: int64 | chunk size: int32 | chunks: int32 | length: int32 | crc32 of the whole data: int32 |
+ * </pre>
+ * The chunks are children of the config node named by the generation, like ".chunk-1f3a...-0",
+ * so the chunks of two publishes never mix. Each chunk holds chunk size bytes of the data, the last one the rest.
+ * The data put together is the encoded config, usually by {@link DeflateCodec}
+ */
+class ChunkManifest {
+    static final byte FORMAT = 0x03;
+    /**
+     * names of chunk nodes start with it
+     */
+    static final String CHUNK_PREFIX = ".chunk-";
+    private static final int SIZE = 1 + Long.BYTES + 4 * Integer.BYTES;
+
+    final long generation;
+    final int chunkSize;
+    final int chunks;
+    final int length;
+    final int crc;
+
+    private ChunkManifest(long generation, int chunkSize, int chunks, int length, int crc) {
+        this.generation = generation;
+        this.chunkSize = chunkSize;
+        this.chunks = chunks;
+        this.length = length;
+        this.crc = crc;
+    }
+
+    /**
+     * a manifest of a new generation
+     * @param data the data to split
+     * @param chunkSize bytes in each chunk
+     */
+    static ChunkManifest of(byte[] data, int chunkSize) {
+        long generation = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        int chunks = (data.length + chunkSize - 1) / chunkSize;
+        return new ChunkManifest(generation, chunkSize, chunks, data.length, crc(data, data.length));
+    }
+
+    /**
+     * @param data data of a config node
+     * @return whether it is a manifest
+     */
+    static boolean isManifest(byte[] data) {
+        return data != null && data.length == SIZE && data[0] == FORMAT;
+    }
+
+    /**
+     * @param data data of a config node
+     * @param maxLength largest config taken, in byte
+     * @return the manifest in data
+     * @throws IOException if data is not a manifest, broken, or of a config larger than maxLength
+     */
+    static ChunkManifest decode(byte[] data, int maxLength) throws IOException {
+        if(!isManifest(data)){
+            throw new IOException("not a chunk manifest");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, 1, SIZE - 1);
+        ChunkManifest manifest = new ChunkManifest(buffer.getLong(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+        if(manifest.chunkSize <= 0 || manifest.length < 0 || manifest.chunks != (int)(((long)manifest.length + manifest.chunkSize - 1) / manifest.chunkSize)){
+            throw new IOException("broken chunk manifest: " + manifest);
+        }
+        if(manifest.length > maxLength){
+            throw new IOException("chunk manifest of " + manifest.length + " bytes, larger than " + maxLength);
+        }
+        return manifest;
+    }
+
+    byte[] encode() {
+        return ByteBuffer.allocate(SIZE).put(FORMAT).putLong(generation).putInt(chunkSize).putInt(chunks).putInt(length).putInt(crc).array();
+    }
+
+    /**
+     * @param path the config node
+     * @param index index of the chunk, from 0
+     * @return path of the chunk node
+     */
+    String chunkPath(String path, int index) {
+        return path + "/" + CHUNK_PREFIX + Long.toHexString(generation) + "-" + index;
+    }
+
+    /**
+     * @param index index of the chunk, from 0
+     * @return bytes in the chunk
+     */
+    int chunkLength(int index) {
+        return index < chunks - 1 ? chunkSize : length - chunkSize * (chunks - 1);
+    }
+
+    /**
+     * @param name name of a child of the config node
+     * @return whether it is a chunk of this generation
+     */
+    boolean owns(String name) {
+        return name.startsWith(CHUNK_PREFIX + Long.toHexString(generation) + "-");
+    }
+
+    /**
+     * @param path any path
+     * @return whether it is a chunk node of any generation, which is not a config
+     */
+    static boolean isChunk(String path) {
+        return path.startsWith(CHUNK_PREFIX, path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @param data holds the data from 0
+     * @param length length of the data
+     */
+    static int crc(byte[] data, int length) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, length);
+        return (int)crc32.getValue();
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkManifest{" +
+                "generation=" + Long.toHexString(generation) +
+                ", chunkSize=" + chunkSize +
+                ", chunks=" + chunks +
+                ", length=" + length +
+                '}';
+    }
+}
@@ -0,0 +1,285 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import space.wudi.learncache.zookeeper.util.CallbackDispatcher;
+import space.wudi.learncache.zookeeper.util.ZooKeeperResult;
+import space.wudi.learncache.zookeeper.util.ZooKeeperSession;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * turns the data read from a config node into a config, reading its chunks first if it is a {@link ChunkManifest}.
+ * <br/>
+ * All chunks are requested at once, and each one is copied into a buffer as it arrives, so a large config is not
+ * held in chunks and in one piece at the same time. The buffer is kept for the next large config of the same reader.
+ * A chunk found deleted means a newer config has been published meanwhile, then the manifest is read again.
+ */
+class ChunkReader {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkReader.class);
+    /**
+     * how many times the manifest is read again before giving up
+     */
+    private static final int MAX_ATTEMPTS = 10;
+
+    /**
+     * the current session of the owner
+     */
+    private final Supplier<ZooKeeper> zk;
+    /**
+     * runs callbacks out of the event thread, in order per path
+     */
+    private final CallbackDispatcher dispatcher = CallbackDispatcher.getDefault();
+    /**
+     * the largest buffer given back, taken by the next assembly that fits in it
+     */
+    private final AtomicReference<byte[]> spare = new AtomicReference<>();
+
+    /**
+     * @param zk gets the current session of the owner
+     */
+    ChunkReader(Supplier<ZooKeeper> zk) {
+        this.zk = zk;
+    }
+
+    /**
+     * turn the result of zookeeper.getData to a config result, reading the chunks if the data is a manifest.
+     * call it on the dispatcher by path
+     * @param rc return code. use KeeperException.Code to convert to the enumerable
+     * @param path query path
+     * @param data data in node
+     * @param stat node stat info. only exists when node exists
+     * @param done takes the config result. called at once unless data is a manifest, then later on the dispatcher by path
+     * @return the reading of the chunks, to cancel when a newer result of path comes first. null if done at once
+     */
+    Assembly read(int rc, String path, byte[] data, Stat stat, Consumer<ZooKeeperResult<Config>> done) {
+        if(Code.get(rc) == Code.OK && ChunkManifest.isManifest(data)){
+            Assembly assembly = new Assembly(path, done);
+            assembly.start(data, stat);
+            return assembly;
+        }
+        done.accept(toConfigResult(rc, path, data, stat));
+        return null;
+    }
+
+    /**
+     * turn the result of zookeeper.getData to a config result
+     * @param rc return code. use KeeperException.Code to convert to the enumerable
+     * @param path query path
+     * @param data data in node
+     * @param stat node stat info. only exists when node exists
+     */
+    static ZooKeeperResult<Config> toConfigResult(int rc, String path, byte[] data, Stat stat) {
+        Code code = Code.get(rc);
+        switch(code){
+            case OK:
+                logger.info("get return data from {}. size = {}", path, data.length);
+                try{
+                    return ZooKeeperResult.of(code, Codecs.decode(data), stat);
+                }catch(Exception e){
+                    return ZooKeeperResult.failure(code, e);
+                }
+            default:
+                logger.warn("unexpected code after get data on {} : {}", path, code);
+                return ZooKeeperResult.of(code, null, null);
+        }
+    }
+
+    private byte[] take(int length) {
+        byte[] buffer = spare.getAndSet(null);
+        if(buffer != null && buffer.length >= length){
+            return buffer;
+        }
+        return new byte[length];
+    }
+
+    private void giveBack(byte[] buffer) {
+        spare.accumulateAndGet(buffer, (kept, given) -> kept == null || kept.length < given.length ? given : kept);
+    }
+
+    /**
+     * reading the chunks of one config node. every method runs on the dispatcher by path
+     */
+    class Assembly implements AsyncCallback.DataCallback {
+        private final String path;
+        private final Consumer<ZooKeeperResult<Config>> done;
+        /**
+         * the manifest being read. chunks of any other are dropped
+         */
+        private ChunkManifest manifest;
+        /**
+         * stat of the manifest node
+         */
+        private Stat stat;
+        private byte[] buffer;
+        private int received;
+        /**
+         * manifests read so far
+         */
+        private int attempts;
+        /**
+         * done, or cancelled by a newer result
+         */
+        private volatile boolean finished;
+
+        private Assembly(String path, Consumer<ZooKeeperResult<Config>> done) {
+            this.path = path;
+            this.done = done;
+        }
+
+        /**
+         * request every chunk of the manifest at once
+         */
+        private void start(byte[] data, Stat stat) {
+            ChunkManifest manifest;
+            try {
+                manifest = ChunkManifest.decode(data, ConfigPayloadSettings.getMaxConfigSize());
+            } catch (IOException e) {
+                finish(ZooKeeperResult.failure(Code.OK, e));
+                return;
+            }
+            attempts++;
+            this.manifest = manifest;
+            this.stat = stat;
+            this.received = 0;
+            if(buffer == null || buffer.length < manifest.length){
+                if(buffer != null){
+                    giveBack(buffer);
+                }
+                buffer = take(manifest.length);
+            }
+            logger.info("read {} chunks of {}, {} bytes", manifest.chunks, path, manifest.length);
+            ZooKeeper zk = ChunkReader.this.zk.get();
+            for (int i = 0; i < manifest.chunks; i++) {
+                zk.getData(manifest.chunkPath(path, i), false, this, new Chunk(manifest, i));
+            }
+            if(manifest.chunks == 0){
+                assemble();
+            }
+        }
+
+        /**
+         * stop reading, a newer result of the path is there. the buffer is kept for another assembly
+         */
+        void cancel() {
+            if(!finished){
+                finished = true;
+                release();
+            }
+        }
+
+        /**
+         * callback of zookeeper.getData for a chunk
+         * @param chunk ctx of zookeeper.getData
+         */
+        @Override
+        public void processResult(int rc, String chunkPath, Object chunk, byte[] data, Stat stat) {
+            dispatcher.dispatch(path, () -> onChunk(rc, (Chunk)chunk, data));
+        }
+
+        private void onChunk(int rc, Chunk chunk, byte[] data) {
+            if(finished || chunk.manifest != manifest){
+                // cancelled, or of a manifest read before
+                return;
+            }
+            Code code = Code.get(rc);
+            switch(code){
+                case OK:
+                    if(data == null || data.length != manifest.chunkLength(chunk.index)){
+                        finish(ZooKeeperResult.failure(code, new IOException("chunk " + chunk.index + " of " + path + " has " + (data == null ? 0 : data.length) + " bytes, expected " + manifest.chunkLength(chunk.index))));
+                        return;
+                    }
+                    System.arraycopy(data, 0, buffer, chunk.index * manifest.chunkSize, data.length);
+                    if(++received == manifest.chunks){
+                        assemble();
+                    }
+                    break;
+                case NONODE:
+                    // replaced by a newer publish before read
+                    logger.info("chunks of {} replaced while reading, read the manifest again", path);
+                    readManifest();
+                    break;
+                case CONNECTIONLOSS:
+                    manifest = null;
+                    ZooKeeperSession.retryLater(attempts, () -> dispatcher.dispatch(path, this::readManifest));
+                    break;
+                default:
+                    finish(ZooKeeperResult.of(code, null, null));
+            }
+        }
+
+        /**
+         * read the config node again, after its chunks are gone or lost
+         */
+        private void readManifest() {
+            manifest = null;
+            if(finished){
+                return;
+            }
+            if(attempts >= MAX_ATTEMPTS){
+                finish(ZooKeeperResult.failure(Code.OK, new IOException("chunks of " + path + " keep changing while reading")));
+                return;
+            }
+            zk.get().getData(path, false, (rc, p, ctx, data, stat) -> dispatcher.dispatch(path, () -> onManifest(rc, data, stat)), null);
+        }
+
+        private void onManifest(int rc, byte[] data, Stat stat) {
+            if(finished){
+                return;
+            }
+            if(Code.get(rc) == Code.OK && ChunkManifest.isManifest(data)){
+                start(data, stat);
+                return;
+            }
+            // no longer chunked
+            finish(toConfigResult(rc, path, data, stat));
+        }
+
+        private void assemble() {
+            ZooKeeperResult<Config> result;
+            if(ChunkManifest.crc(buffer, manifest.length) != manifest.crc){
+                result = ZooKeeperResult.failure(Code.OK, new IOException("crc of the chunks of " + path + " does not match"));
+            }else{
+                try {
+                    result = ZooKeeperResult.of(Code.OK, Codecs.decode(buffer, 0, manifest.length), stat);
+                } catch (IOException e) {
+                    result = ZooKeeperResult.failure(Code.OK, e);
+                }
+            }
+            finish(result);
+        }
+
+        private void finish(ZooKeeperResult<Config> result) {
+            finished = true;
+            release();
+            done.accept(result);
+        }
+
+        private void release() {
+            if(buffer != null){
+                giveBack(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    /**
+     * ctx of reading a chunk
+     */
+    private static class Chunk {
+        private final ChunkManifest manifest;
+        private final int index;
+
+        Chunk(ChunkManifest manifest, int index) {
+            this.manifest = manifest;
+            this.index = index;
+        }
+    }
+}
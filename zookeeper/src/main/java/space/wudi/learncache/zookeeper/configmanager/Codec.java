@@ -0,0 +1,48 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * turns a {@link Config} into the data of a znode and back.
+ * <br/>
+ * The first byte of the data is the format tag of the codec, so a reader finds the codec of any node by
+ * {@link Codecs#decode(byte[])}, and nodes of different formats can be read side by side while moving from one to another.
+ * Other codecs can be added by {@link Codecs#register(Codec)}, or listed in META-INF/services to be found by {@link java.util.ServiceLoader}
+ */
+public interface Codec {
+
+    /**
+     * @return the first byte of every data encoded by this codec. unique among the codecs
+     */
+    byte getFormat();
+
+    /**
+     * @param config the config to encode
+     * @return data of the node, starting with {@link #getFormat()}
+     * @throws IOException if the config cannot be encoded
+     */
+    byte[] encode(Config config) throws IOException;
+
+    /**
+     * @param data data of the node, starting with {@link #getFormat()}
+     * @return the config
+     * @throws IOException if the data is not of this format
+     */
+    Config decode(byte[] data) throws IOException;
+
+    /**
+     * decode a part of an array, like a reused buffer. copies the part by default
+     * @param data holds the data of the node, starting with {@link #getFormat()} at offset
+     * @param offset where the data starts
+     * @param length length of the data
+     * @return the config
+     * @throws IOException if the data is not of this format
+     */
+    default Config decode(byte[] data, int offset, int length) throws IOException {
+        if(offset == 0 && length == data.length){
+            return decode(data);
+        }
+        return decode(Arrays.copyOfRange(data, offset, offset + length));
+    }
+}
@@ -0,0 +1,107 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ServiceLoader;
+
+/**
+ * the codecs known by format tag.
+ * the binary, deflate and java serialization codecs are always known, the json codec when jackson is there,
+ * and others by {@link #register(Codec)} or {@link ServiceLoader}
+ */
+public class Codecs {
+    private static final Logger logger = LoggerFactory.getLogger(Codecs.class);
+    private static final Codec DEFAULT = new BinaryCodec();
+    /**
+     * indexed by the format tag as an unsigned byte
+     */
+    private static final Codec[] CODECS = new Codec[256];
+
+    static {
+        register(DEFAULT);
+        register(new JavaSerializationCodec());
+        register(new DeflateCodec(DEFAULT));
+        try {
+            Class.forName("com.fasterxml.jackson.databind.ObjectMapper", false, Codecs.class.getClassLoader());
+            register(new JsonCodec());
+        } catch (ClassNotFoundException e) {
+            logger.debug("no jackson, json codec not available");
+        }
+        for (Codec codec : ServiceLoader.load(Codec.class)) {
+            try {
+                register(codec);
+            } catch (IllegalArgumentException e) {
+                logger.warn("codec not registered: {}", e.getMessage());
+            }
+        }
+    }
+
+    private Codecs() {
+    }
+
+    /**
+     * @return the codec used when none is given, {@link BinaryCodec}
+     */
+    public static Codec getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * make a codec known to the readers
+     * @param codec the codec
+     * @throws IllegalArgumentException if another codec has the same format tag, or it is the tag of chunked configs
+     */
+    public static synchronized void register(Codec codec) {
+        int index = codec.getFormat() & 0xff;
+        if(index == ChunkManifest.FORMAT){
+            throw new IllegalArgumentException("format " + index + " of " + codec.getClass().getName() + " is taken by chunked configs");
+        }
+        Codec known = CODECS[index];
+        if(known != null && known.getClass() != codec.getClass()){
+            throw new IllegalArgumentException("format " + index + " of " + codec.getClass().getName() + " is taken by " + known.getClass().getName());
+        }
+        CODECS[index] = codec;
+    }
+
+    /**
+     * @param format the format tag
+     * @return the codec, null if not known
+     */
+    public static Codec forFormat(byte format) {
+        return CODECS[format & 0xff];
+    }
+
+    /**
+     * decode with the codec of the format tag at the beginning of data
+     * @param data data of a config node
+     * @return the config
+     * @throws IOException if the data is empty, its format is not known, or it cannot be decoded
+     */
+    public static Config decode(byte[] data) throws IOException {
+        if(data == null){
+            throw new IOException("no data");
+        }
+        return decode(data, 0, data.length);
+    }
+
+    /**
+     * decode a part of an array with the codec of the format tag at offset
+     * @param data holds the data of a config node at offset
+     * @param offset where the data starts
+     * @param length length of the data
+     * @return the config
+     * @throws IOException if the data is empty, its format is not known, or it cannot be decoded
+     */
+    public static Config decode(byte[] data, int offset, int length) throws IOException {
+        if(length == 0){
+            throw new IOException("no data");
+        }
+        Codec codec = forFormat(data[offset]);
+        if(codec == null){
+            throw new IOException("unknown format " + (data[offset] & 0xff));
+        }
+        return codec.decode(data, offset, length);
+    }
+}
@@ -0,0 +1,156 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import space.wudi.learncache.zookeeper.util.ZooKeeperResult;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * the current config of each path, kept up to date by a {@link ConfigListener}, to read on the hot path.
+ * <br/>
+ * Each path has an immutable {@link ConfigSnapshot} behind a volatile reference. A read is one map lookup
+ * and one volatile read, with no lock and no allocation. A snapshot is replaced only by one from a later
+ * modification of the node (a greater mzxid), so a read answered late never brings back an older config.
+ * A deleted node leaves a snapshot without config, which the reads of older versions cannot replace either.
+ * <br/>
+ * Paths are relative to the root of the listener, use one cache per root.
+ */
+public class ConfigCache {
+    private static final Logger logger = LoggerFactory.getLogger(ConfigCache.class);
+
+    /**
+     * the snapshot of each path. a path once added is never removed, so its reference is looked up only once per read
+     */
+    private final ConcurrentMap<String, AtomicReference<ConfigSnapshot>> snapshots = new ConcurrentHashMap<>();
+
+    /**
+     * listen to the config node at path and keep it in this cache
+     * @param listener the listener to listen with
+     * @param path a path relative to the root of the listener
+     * @throws IOException in cases of network failure
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public void listen(ConfigListener listener, String path) throws IOException, InterruptedException {
+        listener.listen(path, result -> update(path, result), true, null, this::delete, p -> true, p -> true);
+    }
+
+    /**
+     * listen to many config nodes at once and keep them in this cache. block until every one is loaded,
+     * see {@link ConfigListener#listenAll}
+     * @param listener the listener to listen with
+     * @param paths paths relative to the root of the listener
+     * @return the first result of each path. the code is NONODE if not exists
+     * @throws IOException in cases of network failure
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public Map<String, ZooKeeperResult<Config>> listenAll(ConfigListener listener, Collection<String> paths) throws IOException, InterruptedException {
+        return listener.listenAll(paths, this::update, this::delete);
+    }
+
+    /**
+     * listen to every config node in the subtree at path and keep them in this cache.
+     * nodes already there are not read, see {@link ConfigListener#listenTree}
+     * @param listener the listener to listen with
+     * @param path a path relative to the root of the listener
+     * @return the result of adding the watch
+     * @throws IOException in cases of network failure
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public ZooKeeperResult<String> listenTree(ConfigListener listener, String path) throws IOException, InterruptedException {
+        return listener.listenTree(path, this::update, this::delete);
+    }
+
+    /**
+     * @param path the config path
+     * @return the current config, null if not known or deleted
+     */
+    public Config get(String path) {
+        AtomicReference<ConfigSnapshot> reference = snapshots.get(path);
+        if(reference == null){
+            return null;
+        }
+        return reference.get().getConfig();
+    }
+
+    /**
+     * @param path the config path
+     * @return the current snapshot with its version, null if not known
+     */
+    public ConfigSnapshot getSnapshot(String path) {
+        AtomicReference<ConfigSnapshot> reference = snapshots.get(path);
+        return reference == null ? null : reference.get();
+    }
+
+    /**
+     * keep a config read from zookeeper if it is newer than the one kept. results without config are ignored
+     * @param path the config path
+     * @param result the result of reading the node
+     * @return true if kept
+     */
+    public boolean update(String path, ZooKeeperResult<Config> result) {
+        if(result.getCode() != Code.OK || result.getData() == null || result.getStat() == null){
+            return false;
+        }
+        return put(path, result.getData(), result.getStat());
+    }
+
+    /**
+     * keep a config if it is newer than the one kept
+     * @param path the config path
+     * @param config the config
+     * @param stat stat of the node the config is read from
+     * @return true if kept
+     */
+    public boolean put(String path, Config config, Stat stat) {
+        ConfigSnapshot snapshot = new ConfigSnapshot(config, stat);
+        AtomicReference<ConfigSnapshot> reference = snapshots.get(path);
+        if(reference == null){
+            reference = snapshots.putIfAbsent(path, new AtomicReference<>(snapshot));
+            if(reference == null){
+                return true;
+            }
+        }
+        while(true){
+            ConfigSnapshot current = reference.get();
+            if(!snapshot.isNewerThan(current)){
+                logger.debug("ignore config of {} at mzxid {}, have {}", path, snapshot.getMzxid(), current.getMzxid());
+                return false;
+            }
+            if(reference.compareAndSet(current, snapshot)){
+                return true;
+            }
+        }
+    }
+
+    /**
+     * the node of path is deleted. reads get null until a later config is kept
+     * @param path the config path
+     */
+    public void delete(String path) {
+        AtomicReference<ConfigSnapshot> reference = snapshots.get(path);
+        if(reference == null){
+            return;
+        }
+        while(true){
+            ConfigSnapshot current = reference.get();
+            if(current.isDeleted() || reference.compareAndSet(current, current.deleted())){
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return number of paths known, deleted ones included
+     */
+    public int size() {
+        return snapshots.size();
+    }
+}
@@ -1,37 +1,92 @@
 package space.wudi.learncache.zookeeper.configmanager;
 
+import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.WatcherType;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.KeeperException.Code;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.lang.Nullable;
-import space.wudi.learncache.zookeeper.util.MySerializable;
+import space.wudi.learncache.zookeeper.util.CallbackDispatcher;
+import space.wudi.learncache.zookeeper.util.Futures;
 import space.wudi.learncache.zookeeper.util.ZooKeeperResult;
-import space.wudi.learncache.zookeeper.util.ZooKeeperResultHolder;
 import space.wudi.learncache.zookeeper.util.ZooKeeperSession;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 /**
  * a listener to receive config changes.
- * one listener can listen to multiple config nodes.
+ * one listener can listen to multiple config nodes, of any format known by {@link Codecs}.
+ * if its session expires, it moves to a new session, watches every config node again and reads each of them once,
+ * since changes while expired are never told.
+ * <br/>
+ * A version of a node already passed to onChange, or an older one, is not passed again. With a coalescing window,
+ * the changes of a node in a burst are read once at the end of the window, rather than once each.
+ * <br/>
+ * onChange, onDelete and onNotExist run on a dispatcher of consumers, apart from the one handling zookeeper results,
+ * so a slow consumer holds up only the later callbacks of its own path. The callbacks of one path run in order,
+ * the ones of different paths in parallel. onExists and onCreate decide what to read, so they run before, and should be quick.
+ * When the consumers are behind by the limit of their dispatcher, an onChange of a path still waiting is replaced by the later one
  */
 public class ConfigListener {
     private static final Logger logger = LoggerFactory.getLogger(ConfigListener.class);
     /**
      * zookeeper session (or connection)
      */
-    private ZooKeeper zk;
+    private volatile ZooKeeper zk;
+    /**
+     * closed by {@link #close()}. the session is given back, so callbacks coming later drop their results and send nothing.
+     * zk is kept rather than cleared, for the ones already running
+     */
+    private volatile boolean closed;
     /**
      * remembers the root to listening
      */
     private String root;
+    /**
+     * runs callbacks out of the event thread, in order per path
+     */
+    private final CallbackDispatcher dispatcher = CallbackDispatcher.getDefault();
+    /**
+     * reads the chunks of configs published in chunks, with the current session
+     */
+    private final ChunkReader chunks = new ChunkReader(() -> zk);
+    /**
+     * the listens still watching, to watch again after the session expired
+     */
+    private final Set<ListenWatcherCallback> listening = ConcurrentHashMap.newKeySet();
+    /**
+     * the subtrees listened by {@link #listenTree}, to watch again after the session expired
+     */
+    private final Set<TreeWatcherCallback> trees = ConcurrentHashMap.newKeySet();
+    /**
+     * changes of a node within this window after the first one are read once at its end, in millisecond. 0 to read at once
+     */
+    private final long coalesceWindow;
+    /**
+     * runs onChange, onDelete and onNotExist, in order per path
+     */
+    private final CallbackDispatcher consumers;
+    /**
+     * told by the session pool when the session expires
+     */
+    private final Consumer<ZooKeeper> onExpired = expired -> dispatcher.dispatch(root, () -> replay(expired, 0));
 
     /**
      * create a listener to listen to root
@@ -40,34 +95,136 @@ public class ConfigListener {
      * @throws InterruptedException if the current thread is interrupted while waiting
      */
     public ConfigListener(String root) throws IOException, InterruptedException {
+        this(root, 0);
+    }
+
+    /**
+     * create a listener to listen to root, coalescing the changes of each node in bursts
+     * @param root the root to be listened
+     * @param coalesceWindow changes of a node within this window after the first one are read once at its end,
+     *                       in millisecond. 0 to read each change at once
+     * @throws IOException in cases of network failure
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public ConfigListener(String root, long coalesceWindow) throws IOException, InterruptedException {
+        this(root, coalesceWindow, CallbackDispatcher.getConsumerDefault());
+    }
+
+    /**
+     * create a listener to listen to root, calling back on the given dispatcher
+     * @param root the root to be listened
+     * @param coalesceWindow changes of a node within this window after the first one are read once at its end,
+     *                       in millisecond. 0 to read each change at once
+     * @param consumers runs onChange, onDelete and onNotExist, keyed by path. limit its pending callbacks
+     *                  for a slow consumer to skip to the latest config of a path rather than piling up the ones in between
+     * @throws IOException in cases of network failure
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public ConfigListener(String root, long coalesceWindow, CallbackDispatcher consumers) throws IOException, InterruptedException {
         this.root = root;
+        this.coalesceWindow = coalesceWindow;
+        this.consumers = consumers;
         connect();
     }
 
     /**
-     * connect to zookeeper servers. if already have a connection, release it.
+     * connect to zookeeper servers. if already have a connection, give it back.
      * @throws InterruptedException if the current thread is interrupted while waiting
      * @throws IOException in cases of network failure
      */
     private void connect() throws InterruptedException, IOException {
         logger.info("connect to zookeeper server");
-        if(this.zk != null){
-            zk.close();
+        swap(this.zk, ZooKeeperSession.getZooKeeperClient(this.root));
+    }
+
+    /**
+     * move from the old session to the new one, and give the old one back
+     * @param old the session moving from, null if none
+     * @param zk the session moving to
+     * @return false if closed or moved by another meanwhile, then zk is given back instead
+     */
+    private synchronized boolean swap(ZooKeeper old, ZooKeeper zk) {
+        if(closed || this.zk != old){
+            ZooKeeperSession.releaseZooKeeperClient(zk);
+            return false;
         }
-        this.zk = ZooKeeperSession.getZooKeeperClient(this.root);
+        ZooKeeperSession.addExpiryListener(zk, onExpired);
+        this.zk = zk;
+        if(old != null){
+            // the session is shared with others. give it back rather than close it
+            ZooKeeperSession.removeExpiryListener(old, onExpired);
+            ZooKeeperSession.releaseZooKeeperClient(old);
+        }
+        return true;
     }
 
     /**
-     * check if current connection is alive. if not, reconnect
+     * check if current session is alive. if not, reconnect.
+     * a disconnected session is still alive, it reconnects by itself and keeps the watches
      * @throws IOException in cases of network failure
      * @throws InterruptedException if the current thread is interrupted while waiting
+     * @throws IllegalStateException if closed
      */
     private void checkConnect() throws IOException, InterruptedException {
-        if(!this.zk.getState().isConnected()){
+        if(closed){
+            throw new IllegalStateException("listener of " + root + " is closed");
+        }
+        if(!this.zk.getState().isAlive()){
             connect();
         }
     }
 
+    /**
+     * the session expired, and every watch set by it is gone.
+     * move to a new session, then watch every listened node again and read it once
+     * @param expired the expired session
+     * @param attempt how many times failed to connect again
+     */
+    private void replay(ZooKeeper expired, int attempt) {
+        if(closed || zk != expired){
+            // closed, or moved to another session already
+            return;
+        }
+        // the new session may take a while to connect. wait for it off the dispatcher
+        ZooKeeperSession.getZooKeeperClientAsync(root).whenComplete((session, throwable) -> dispatcher.dispatch(root, () -> {
+            if(throwable != null){
+                logger.error("cannot connect again after the session of {} expired", root, Futures.unwrap(throwable));
+                ZooKeeperSession.retryLater(attempt, () -> dispatcher.dispatch(root, () -> replay(expired, attempt + 1)));
+                return;
+            }
+            if(!swap(expired, session)){
+                return;
+            }
+            logger.info("session of {} expired, listening to {} config nodes and {} trees again", root, listening.size(), trees.size());
+            for (ListenWatcherCallback callback : listening) {
+                callback.replay();
+            }
+            for (TreeWatcherCallback callback : trees) {
+                callback.replay();
+            }
+        }));
+    }
+
+    /**
+     * give back the zookeeper session. this object should not be used any more
+     */
+    public synchronized void close() {
+        if(closed){
+            return;
+        }
+        closed = true;
+        for (ListenWatcherCallback callback : listening) {
+            callback.remove();
+        }
+        listening.clear();
+        for (TreeWatcherCallback callback : trees) {
+            callback.remove();
+        }
+        trees.clear();
+        ZooKeeperSession.removeExpiryListener(zk, onExpired);
+        ZooKeeperSession.releaseZooKeeperClient(zk);
+    }
+
     /**
      * start to listen to a config node at path
      * @param path a path relative to {@link #root} passed when construct
@@ -90,15 +247,249 @@ public class ConfigListener {
             @Nullable Predicate<String> onCreate
     ) throws IOException, InterruptedException {
         checkConnect();
-        ListenWatcherCallback listenWatcherCallback = new ListenWatcherCallback(onNotExist, onExists, onChange, onCreate, onDelete, keepWatchingWhenChange);
+        ListenWatcherCallback listenWatcherCallback = new ListenWatcherCallback(path, toConsumers(onNotExist), onExists,
+                result -> consumers.dispatchLatest(path, onChange, () -> onChange.accept(result)), onCreate, toConsumers(onDelete), keepWatchingWhenChange);
+        listening.add(listenWatcherCallback);
         zk.exists(path, listenWatcherCallback, listenWatcherCallback, path);
     }
 
+    /**
+     * start to listen to many config nodes at once, reading each of them with the watch set, until changed or deleted.
+     * <br/>
+     * Unlike {@link #listen}, nothing asks for existence first: the reads of all paths are sent in one go without
+     * waiting for each other, so loading them all costs about one round trip. A missing node is watched to be created.
+     * Returns when every path is loaded, for the application to wait once for its configs being ready
+     * @param paths paths relative to {@link #root} passed when construct
+     * @param onChange do something with the path and the config read, including the first time
+     * @param onDelete do something with the path when a node is deleted
+     * @return the first result of each path, in the order of paths. the code is NONODE if not exists,
+     * OK without config if the node has no data yet, like one being published in chunks
+     * @throws IOException in cases of network failure
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public Map<String, ZooKeeperResult<Config>> listenAll(
+            Collection<String> paths,
+            BiConsumer<String, ZooKeeperResult<Config>> onChange,
+            @Nullable Consumer<String> onDelete
+    ) throws IOException, InterruptedException {
+        return Futures.await(listenAllAsync(paths, onChange, onDelete));
+    }
+
+    /**
+     * the same as {@link #listenAll}, without blocking
+     * @return a future of the first result of each path, completing after onChange of every path has run.
+     * completes exceptionally if failed before sending to zookeeper
+     */
+    public CompletableFuture<Map<String, ZooKeeperResult<Config>>> listenAllAsync(
+            Collection<String> paths,
+            BiConsumer<String, ZooKeeperResult<Config>> onChange,
+            @Nullable Consumer<String> onDelete
+    ) {
+        try {
+            checkConnect();
+        } catch (IOException e) {
+            return Futures.failed(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Futures.failed(e);
+        }
+        Map<String, CompletableFuture<ZooKeeperResult<Config>>> loads = new LinkedHashMap<>();
+        for (String path : paths) {
+            if(loads.containsKey(path)){
+                continue;
+            }
+            CompletableFuture<ZooKeeperResult<Config>> loaded = new CompletableFuture<>();
+            loads.put(path, loaded);
+            ListenWatcherCallback listenWatcherCallback = new ListenWatcherCallback(path, null, p -> true,
+                    result -> consumers.dispatchLatest(path, loaded, () -> {
+                        try {
+                            onChange.accept(path, result);
+                        } finally {
+                            loaded.complete(result);
+                        }
+                    }), p -> true, toConsumers(onDelete), true);
+            // an empty node is not passed to onChange, it is loaded all the same
+            listenWatcherCallback.onNoData = loaded::complete;
+            listening.add(listenWatcherCallback);
+            // watches the data if exists. if not, the callback watches it to be created
+            zk.getData(path, listenWatcherCallback, listenWatcherCallback, path);
+        }
+        logger.info("loading {} config nodes", loads.size());
+        // the last one loaded on a consumer thread. leave it before passing the results to users
+        return CompletableFuture.allOf(loads.values().toArray(new CompletableFuture[0])).thenApplyAsync(ignore -> {
+            Map<String, ZooKeeperResult<Config>> results = new LinkedHashMap<>();
+            loads.forEach((path, loaded) -> results.put(path, loaded.join()));
+            return results;
+        }, Futures.getCompletionExecutor());
+    }
+
+    /**
+     * stop every {@link #listen} to path of this listener, and remove their watchers. their callbacks are not called any more.
+     * <br/>
+     * the server is asked to check the watch but keeps it until the next change, which is then dropped by the client.
+     * only removeAllWatches clears it on the server, and that would take the watches of others sharing the session as well.
+     * needs zookeeper server 3.6 or later
+     * @param path a path relative to {@link #root} passed when construct
+     * @return the result of removing the watches, with path as data
+     * @throws IOException in cases of network failure
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public ZooKeeperResult<String> unlisten(String path) throws IOException, InterruptedException {
+        return Futures.await(unlistenAsync(path));
+    }
+
+    /**
+     * the same as {@link #unlisten}, without blocking
+     * @return a future of the result of removing the watches
+     */
+    public CompletableFuture<ZooKeeperResult<String>> unlistenAsync(String path) {
+        List<CompletableFuture<Code>> removals = new ArrayList<>();
+        for (ListenWatcherCallback callback : listening) {
+            if(callback.path.equals(path) && listening.remove(callback)){
+                removals.add(callback.remove());
+            }
+        }
+        // removed in the event thread. leave it before passing the result to users
+        return CompletableFuture.allOf(removals.toArray(new CompletableFuture[0])).thenApplyAsync(ignore -> {
+            for (CompletableFuture<Code> removal : removals) {
+                Code code = removal.join();
+                if(code != Code.OK){
+                    return ZooKeeperResult.<String>of(code, null, null);
+                }
+            }
+            return ZooKeeperResult.of(Code.OK, path, null);
+        }, Futures.getCompletionExecutor());
+    }
+
+    /**
+     * start to listen to every config node in the subtree at path, path itself included, by one persistent recursive watch.
+     * the watch stays after each event, so nothing is sent to watch again, and a subtree of any size costs one watch.
+     * <br/>
+     * Created and changed nodes are read and passed to onChange. Nodes without data, like the parents made
+     * when publishing, are skipped. Nodes already there are not read, use {@link #readAsync(String)} for them.
+     * Changes missed while disconnected or expired are read when connected again.
+     * Needs zookeeper server 3.6 or later
+     * @param path a path relative to {@link #root} passed when construct
+     * @param onChange do something with the path and the config read, when a config node is created or changed
+     * @param onDelete do something with the path when a node in the subtree is deleted
+     * @return the result of adding the watch, with path as data
+     * @throws IOException in cases of network failure
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public ZooKeeperResult<String> listenTree(
+            String path,
+            BiConsumer<String, ZooKeeperResult<Config>> onChange,
+            @Nullable Consumer<String> onDelete
+    ) throws IOException, InterruptedException {
+        return Futures.await(listenTreeAsync(path, onChange, onDelete));
+    }
+
+    /**
+     * the same as {@link #listenTree}, without blocking
+     * @return a future of the result of adding the watch. completes exceptionally if failed before sending to zookeeper
+     */
+    public CompletableFuture<ZooKeeperResult<String>> listenTreeAsync(
+            String path,
+            BiConsumer<String, ZooKeeperResult<Config>> onChange,
+            @Nullable Consumer<String> onDelete
+    ) {
+        try {
+            checkConnect();
+        } catch (IOException e) {
+            return Futures.failed(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Futures.failed(e);
+        }
+        TreeWatcherCallback treeWatcherCallback = new TreeWatcherCallback(path,
+                (p, result) -> consumers.dispatchLatest(p, onChange, () -> onChange.accept(p, result)), toConsumers(onDelete));
+        trees.add(treeWatcherCallback);
+        treeWatcherCallback.addWatch(false);
+        return treeWatcherCallback.added;
+    }
+
+    /**
+     * read the config at path once, without watching it
+     * @param path a path relative to {@link #root} passed when construct
+     * @return a future of the config. completes exceptionally if failed before sending to zookeeper
+     */
+    public CompletableFuture<ZooKeeperResult<Config>> readAsync(String path) {
+        try {
+            checkConnect();
+        } catch (IOException e) {
+            return Futures.failed(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Futures.failed(e);
+        }
+        CompletableFuture<ZooKeeperResult<Config>> future = new CompletableFuture<>();
+        zk.getData(path, false, (rc, p, ctx, data, stat) ->
+                dispatcher.dispatch(p, () -> chunks.read(rc, p, data, stat, result -> Futures.completeAsync(future, result))), path);
+        return future;
+    }
+
+    /**
+     * read the config at path once, without watching it. block until read
+     * @param path a path relative to {@link #root} passed when construct
+     * @return the config
+     * @throws IOException in cases of network failure
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public ZooKeeperResult<Config> read(String path) throws IOException, InterruptedException {
+        return Futures.await(readAsync(path));
+    }
+
+    /**
+     * @param consumer takes a path
+     * @return the consumer dispatched by path to {@link #consumers}, null if consumer is null
+     */
+    private Consumer<String> toConsumers(@Nullable Consumer<String> consumer) {
+        if(consumer == null){
+            return null;
+        }
+        return path -> consumers.dispatch(path, () -> consumer.accept(path));
+    }
+
+    /**
+     * read a changed node at once, or when coalescing, once at the end of the window however many changes come meanwhile
+     * @param scheduled the paths waiting to be read, of one watcher
+     * @param path the node changed
+     * @param read reads the node
+     */
+    private void readCoalesced(Set<String> scheduled, String path, Runnable read) {
+        if(coalesceWindow <= 0){
+            read.run();
+            return;
+        }
+        if(!scheduled.add(path)){
+            logger.debug("change of {} coalesced", path);
+            return;
+        }
+        ZooKeeperSession.runLater(coalesceWindow, () -> dispatcher.dispatch(path, () -> {
+            scheduled.remove(path);
+            read.run();
+        }));
+    }
+
+    /**
+     * @param stat stat of the node read
+     * @param last stat of the node last passed to onChange, null if none
+     * @return whether the node read is newer, a later version or created again
+     */
+    private static boolean isNewer(Stat stat, Stat last) {
+        return last == null || stat.getCzxid() > last.getCzxid()
+                || stat.getCzxid() == last.getCzxid() && stat.getVersion() > last.getVersion();
+    }
+
     /**
      * an object combine watcher and callback for ConfigListener
      */
-    private class ListenWatcherCallback extends ZooKeeperResultHolder<Config> implements AsyncCallback.StatCallback, AsyncCallback.DataCallback, Watcher {
+    private class ListenWatcherCallback implements AsyncCallback.StatCallback, AsyncCallback.DataCallback, Watcher {
 
+        /**
+         * the config path listened
+         */
+        private final String path;
         /**
          * do something if config path node not exists at the beginning
          */
@@ -123,9 +514,43 @@ public class ConfigListener {
          * after reading config, whether watch this node's change or not
          */
         private boolean keepWatchingWhenChange;
+        /**
+         * the node is known to exist, from the last read or event
+         */
+        private boolean exists;
+        /**
+         * watching again after the session expired. the data is read whatever onExists says
+         */
+        private boolean replaying;
+        /**
+         * requests failed by connection loss in a row
+         */
+        private int retries;
+        /**
+         * reading the chunks of the last data read, null if not chunked or done
+         */
+        private ChunkReader.Assembly assembly;
+        /**
+         * stat of the node last passed to onChange
+         */
+        private Stat delivered;
+        /**
+         * takes the result when the node is read without data, null if nothing to do.
+         * such a node is not passed to onChange while keeping watching, its config comes as a change
+         */
+        private Consumer<ZooKeeperResult<Config>> onNoData;
+        /**
+         * unlistened. results and events coming later are dropped
+         */
+        private volatile boolean removed;
+        /**
+         * the path if its read is waiting for the coalescing window
+         */
+        private final Set<String> scheduled = ConcurrentHashMap.newKeySet();
 
         /**
          * create Callback and Watcher fro Config Listener
+         * @param path the config path listened
          * @param onNotExist do something if configPath node not exists at the beginning
          * @param onExists if node of configPath exists at the beginning, whether read the config or not
          * @param onChange do something when configPath node changes
@@ -134,6 +559,7 @@ public class ConfigListener {
          * @param keepWatchingWhenChange after reading config, whether watch this node's change or not
          */
         ListenWatcherCallback(
+                String path,
                 Consumer<String> onNotExist,
                 Predicate<String> onExists,
                 Consumer<ZooKeeperResult<Config>> onChange,
@@ -141,6 +567,7 @@ public class ConfigListener {
                 Consumer<String> onDelete,
                 boolean keepWatchingWhenChange)
         {
+            this.path = path;
             this.onNotExist = onNotExist;
             this.onExists = onExists;
             this.onChange = onChange;
@@ -158,21 +585,55 @@ public class ConfigListener {
          */
         @Override
         public void processResult(int rc, String path, Object configPath, Stat stat) {
+            // leave the event thread at once
+            dispatcher.dispatch(path, () -> onExistsResult(rc, path, configPath, stat));
+        }
+
+        private void onExistsResult(int rc, String path, Object configPath, Stat stat) {
+            if(removed){
+                return;
+            }
             Code code = Code.get(rc);
-            result.setCode(code);
+            if(code == Code.OK || code == Code.NONODE){
+                retries = 0;
+            }
             switch(code){
                 case NONODE:
                     logger.info("configPath {} not exists", configPath);
+                    if(replaying){
+                        replaying = false;
+                        if(exists){
+                            logger.info("configPath {} deleted while the session expired", configPath);
+                            exists = false;
+                            if(onDelete != null){
+                                onDelete.accept((String)configPath);
+                            }
+                        }
+                        break;
+                    }
                     if(onNotExist != null){
                         onNotExist.accept((String)configPath);
                     }
                     break;
                 case OK:
                     logger.info("configPath {} exists", configPath);
+                    if(replaying){
+                        // may have changed while the session expired
+                        replaying = false;
+                        readConfig(path);
+                        break;
+                    }
                     if(onExists != null && onExists.test((String)configPath)){
                         readConfig(path);
                     }
                     break;
+                case CONNECTIONLOSS:
+                    // the watch may not be set. ask again when connected
+                    retry(() -> zk.exists(path, this, this, configPath));
+                    break;
+                case SESSIONEXPIRED:
+                    // watched again by the new session
+                    break;
                 default:
                     logger.warn("unexpected code after check existence of {}: {}", path, code);
             }
@@ -184,6 +645,19 @@ public class ConfigListener {
          */
         @Override
         public void process(WatchedEvent event) {
+            if(event.getPath() == null){
+                // connection state event, no path to dispatch on. the session pool handles it
+                logger.debug("connection state of {} changes to {}", path, event.getState());
+                return;
+            }
+            dispatcher.dispatch(event.getPath(), () -> onWatchedEvent(event));
+        }
+
+        private void onWatchedEvent(WatchedEvent event) {
+            if(removed){
+                logger.info("watch of {} told {} after unlisten", path, event.getType());
+                return;
+            }
             switch (event.getType()){
                 case NodeCreated:
                     logger.info("node {} created", event.getPath());
@@ -195,6 +669,7 @@ public class ConfigListener {
                     break;
                 case NodeDeleted:
                     logger.info("node {} deleted", event.getPath());
+                    exists = false;
                     if(onDelete != null){
                         onDelete.accept(event.getPath());
                     }
@@ -202,7 +677,7 @@ public class ConfigListener {
                     break;
                 case NodeDataChanged:
                     logger.info("node {} data changed", event.getPath());
-                    readConfig(event.getPath());
+                    readCoalesced(scheduled, event.getPath(), () -> readConfig(event.getPath()));
                     break;
                 default:
                     logger.warn("unsupported watched event: {}", event);
@@ -221,23 +696,101 @@ public class ConfigListener {
          */
         @Override
         public void processResult(int rc, String path, Object configPath, byte[] data, Stat stat) {
+            dispatcher.dispatch(path, () -> onDataResult(rc, path, data, stat));
+        }
+
+        private void onDataResult(int rc, String path, byte[] data, Stat stat) {
+            if(removed){
+                return;
+            }
             Code code = Code.get(rc);
-            result.setCode(code);
             switch(code){
+                case CONNECTIONLOSS:
+                    // neither read nor watched. read again when connected
+                    retry(() -> readConfig(path));
+                    return;
+                case SESSIONEXPIRED:
+                    // read again by the new session
+                    return;
                 case OK:
-                    logger.info("get return data from {}. size = {}", path, data.length);
-                    try{
-                        result.setData(MySerializable.fromBytes(data, Config.class));
-                        result.setStat(stat);
-                        result.setThrowable(null);
-                    }catch(Exception e){
-                        result.setThrowable(e);
+                    retries = 0;
+                    exists = true;
+                    if(keepWatchingWhenChange && (data == null || data.length == 0)){
+                        // created without data to hold the chunks of a large config. the manifest comes as a change
+                        if(onNoData != null){
+                            onNoData.accept(ZooKeeperResult.of(code, null, stat));
+                        }
+                        return;
+                    }
+                    if(!isNewer(stat, delivered)){
+                        logger.info("version {} of {} is not newer than the one passed, skipped", stat.getVersion(), path);
+                        return;
+                    }
+                    delivered = stat;
+                    break;
+                case NONODE:
+                    retries = 0;
+                    exists = false;
+                    if(keepWatchingWhenChange){
+                        // deleted before read. watch for it to come back
+                        zk.exists(path, this, this, path);
                     }
                     break;
                 default:
-                    logger.warn("unexpected code after get data on {} : {}", path, code);
             }
-            onChange.accept(result);
+            if(assembly != null){
+                // chunks of an older config
+                assembly.cancel();
+            }
+            assembly = chunks.read(rc, path, data, stat, onChange);
+        }
+
+        /**
+         * drop the results to come, and remove the watchers of this callback
+         * @return a future of the result code, OK if removed or there was no watch
+         */
+        CompletableFuture<Code> remove() {
+            removed = true;
+            dispatcher.dispatch(path, () -> {
+                if(assembly != null){
+                    assembly.cancel();
+                    assembly = null;
+                }
+            });
+            CompletableFuture<Code> future = new CompletableFuture<>();
+            zk.removeWatches(path, this, WatcherType.Any, true, (rc, p, ctx) -> {
+                Code code = Code.get(rc);
+                // no watch if it is just told and not set again
+                future.complete(code == Code.NOWATCHER ? Code.OK : code);
+            }, null);
+            return future;
+        }
+
+        /**
+         * watch the node again with the new session after the old one expired, and read it once if exists
+         */
+        void replay() {
+            dispatcher.dispatch(path, () -> {
+                if(removed){
+                    return;
+                }
+                replaying = true;
+                zk.exists(path, this, this, path);
+            });
+        }
+
+        /**
+         * send a request failed by connection loss again, after a backoff growing with the failures in a row
+         * @param request the request to send again
+         */
+        private void retry(Runnable request) {
+            int attempt = retries++;
+            logger.info("connection lost while listening to {}, retry {}", path, attempt + 1);
+            ZooKeeperSession.retryLater(attempt, () -> dispatcher.dispatch(path, () -> {
+                if(!removed){
+                    request.run();
+                }
+            }));
         }
 
         /**
@@ -245,13 +798,341 @@ public class ConfigListener {
          * @param path query path
          */
         private void readConfig(String path){
+            if(removed){
+                // unlistened or closed while waiting for the coalescing window
+                return;
+            }
             if(keepWatchingWhenChange){
                 logger.info("get data at {} and reset watcher", path);
                 zk.getData(path, this, this, path);
             }else{
                 logger.info("get data at {} and remove watcher", path);
+                listening.remove(this);
                 zk.getData(path, false, this, path);
             }
         }
     }
+    /**
+     * the persistent recursive watch of one subtree, and the callbacks to read the nodes it tells
+     */
+    private class TreeWatcherCallback implements Watcher, AsyncCallback.VoidCallback, AsyncCallback.DataCallback {
+        /**
+         * root of the subtree
+         */
+        private final String path;
+        /**
+         * do something with the path and the config read, when a config node is created or changed
+         */
+        private final BiConsumer<String, ZooKeeperResult<Config>> onChange;
+        /**
+         * do something with the path when a node is deleted
+         */
+        private final Consumer<String> onDelete;
+        /**
+         * completes when the watch is first added
+         */
+        private final CompletableFuture<ZooKeeperResult<String>> added = new CompletableFuture<>();
+        /**
+         * config nodes passed to onChange with the stat of the last one, to tell the ones deleted while not watching,
+         * and to skip the versions passed
+         */
+        private final Map<String, Stat> known = new ConcurrentHashMap<>();
+        /**
+         * the paths waiting for the coalescing window to be read
+         */
+        private final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+        /**
+         * the connection was lost, and changes meanwhile are not told
+         */
+        private volatile boolean disconnected;
+        /**
+         * requests failed by connection loss in a row, for the backoff
+         */
+        private final AtomicInteger retries = new AtomicInteger();
+        /**
+         * reading the chunks of config nodes, by path
+         */
+        private final Map<String, ChunkReader.Assembly> assemblies = new ConcurrentHashMap<>();
+
+        TreeWatcherCallback(String path, BiConsumer<String, ZooKeeperResult<Config>> onChange, Consumer<String> onDelete) {
+            this.path = path;
+            this.onChange = onChange;
+            this.onDelete = onDelete;
+        }
+
+        /**
+         * @param catchUp read the subtree once the watch is added, for the changes missed
+         */
+        void addWatch(boolean catchUp) {
+            logger.info("add persistent recursive watch at {}", path);
+            zk.addWatch(path, this, AddWatchMode.PERSISTENT_RECURSIVE, this, catchUp);
+        }
+
+        /**
+         * watch the subtree again with the new session after the old one expired
+         */
+        void replay() {
+            dispatcher.dispatch(path, () -> {
+                if(!closed){
+                    addWatch(true);
+                }
+            });
+        }
+
+        /**
+         * stop reading the chunks, and remove the persistent watch.
+         * the session is shared, the watch stays on it unless removed
+         */
+        void remove() {
+            dispatcher.dispatch(path, () -> {
+                for (String path : assemblies.keySet()) {
+                    cancelAssembly(path);
+                }
+            });
+            zk.removeWatches(path, this, WatcherType.Any, true, (rc, p, ctx) -> {}, null);
+        }
+
+        /**
+         * callback of zookeeper.addWatch
+         * @param catchUp ctx of zookeeper.addWatch
+         */
+        @Override
+        public void processResult(int rc, String path, Object catchUp) {
+            dispatcher.dispatch(path, () -> onWatchAdded(rc, path, (Boolean)catchUp));
+        }
+
+        private void onWatchAdded(int rc, String path, boolean catchUp) {
+            if(closed){
+                return;
+            }
+            Code code = Code.get(rc);
+            switch(code){
+                case OK:
+                    retries.set(0);
+                    if(catchUp){
+                        new CatchUp().start();
+                    }
+                    Futures.completeAsync(added, ZooKeeperResult.of(code, path, null));
+                    break;
+                case CONNECTIONLOSS:
+                    retry(path, () -> addWatch(catchUp));
+                    break;
+                case SESSIONEXPIRED:
+                    // watched again by the new session
+                    break;
+                default:
+                    logger.warn("unexpected code after add watch at {}: {}", path, code);
+                    trees.remove(this);
+                    Futures.completeAsync(added, ZooKeeperResult.failure(code, new RuntimeException("unexpected code after add watch at " + path + ": " + code)));
+            }
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if(event.getPath() == null){
+                onStateChanged(event.getState());
+                return;
+            }
+            dispatcher.dispatch(event.getPath(), () -> onWatchedEvent(event));
+        }
+
+        private void onStateChanged(Event.KeeperState state) {
+            switch(state){
+                case Disconnected:
+                    disconnected = true;
+                    break;
+                case SyncConnected:
+                    if(disconnected){
+                        // the watch is added again by the client, but what changed meanwhile is not told
+                        disconnected = false;
+                        logger.info("connected again, reading the changes missed beneath {}", path);
+                        dispatcher.dispatch(path, () -> {
+                            if(!closed){
+                                new CatchUp().start();
+                            }
+                        });
+                    }
+                    break;
+                default:
+            }
+        }
+
+        private void onWatchedEvent(WatchedEvent event) {
+            if(closed){
+                return;
+            }
+            if(ChunkManifest.isChunk(event.getPath())){
+                // read together with its config node
+                return;
+            }
+            switch(event.getType()){
+                case NodeCreated:
+                case NodeDataChanged:
+                    readCoalesced(scheduled, event.getPath(), () -> read(event.getPath()));
+                    break;
+                case NodeDeleted:
+                    logger.info("node {} deleted", event.getPath());
+                    cancelAssembly(event.getPath());
+                    known.remove(event.getPath());
+                    if(onDelete != null){
+                        onDelete.accept(event.getPath());
+                    }
+                    break;
+                default:
+                    logger.info("watch at {} told {}", path, event.getType());
+            }
+        }
+
+        /**
+         * read a node once, the watch is already there
+         */
+        private void read(String path) {
+            if(closed){
+                // waiting for the coalescing window, a retry or a catch up when closed
+                return;
+            }
+            zk.getData(path, false, this, path);
+        }
+
+        /**
+         * callback of zookeeper.getData in {@link #read}
+         */
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            dispatcher.dispatch(path, () -> onDataResult(rc, path, data, stat));
+        }
+
+        private void onDataResult(int rc, String path, byte[] data, Stat stat) {
+            if(closed){
+                return;
+            }
+            Code code = Code.get(rc);
+            switch(code){
+                case OK:
+                    retries.set(0);
+                    if(data == null || data.length == 0){
+                        // a parent, not a config
+                        return;
+                    }
+                    if(!isNewer(stat, known.get(path))){
+                        logger.info("version {} of {} is not newer than the one passed, skipped", stat.getVersion(), path);
+                        return;
+                    }
+                    known.put(path, stat);
+                    cancelAssembly(path);
+                    ChunkReader.Assembly assembly = chunks.read(rc, path, data, stat, result -> {
+                        assemblies.remove(path);
+                        onChange.accept(path, result);
+                    });
+                    if(assembly != null){
+                        assemblies.put(path, assembly);
+                    }
+                    break;
+                case NONODE:
+                    // deleted before read, the watch tells it
+                    break;
+                case CONNECTIONLOSS:
+                    retry(path, () -> read(path));
+                    break;
+                case SESSIONEXPIRED:
+                    break;
+                default:
+                    onChange.accept(path, ChunkReader.toConfigResult(rc, path, data, stat));
+            }
+        }
+
+        /**
+         * stop reading the chunks of an older config at path, if any
+         */
+        private void cancelAssembly(String path) {
+            ChunkReader.Assembly assembly = assemblies.remove(path);
+            if(assembly != null){
+                assembly.cancel();
+            }
+        }
+
+        /**
+         * send a request failed by connection loss again, after a backoff growing with the failures in a row
+         */
+        private void retry(String path, Runnable request) {
+            int attempt = retries.getAndIncrement();
+            logger.info("connection lost while listening to {}, retry {}", path, attempt + 1);
+            ZooKeeperSession.retryLater(attempt, () -> dispatcher.dispatch(path, () -> {
+                if(!closed){
+                    request.run();
+                }
+            }));
+        }
+
+        /**
+         * walk the subtree to read every node, and tell the known nodes not found as deleted
+         */
+        private class CatchUp implements AsyncCallback.ChildrenCallback {
+            private final Set<String> found = ConcurrentHashMap.newKeySet();
+            /**
+             * listings not answered yet
+             */
+            private final AtomicInteger pending = new AtomicInteger();
+            private volatile boolean failed;
+
+            void start() {
+                list(TreeWatcherCallback.this.path);
+            }
+
+            private void list(String path) {
+                if(closed){
+                    failed = true;
+                    return;
+                }
+                pending.incrementAndGet();
+                zk.getChildren(path, false, this, null);
+            }
+
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<String> children) {
+                Code code = Code.get(rc);
+                switch(code){
+                    case OK:
+                        found.add(path);
+                        for (String child : children) {
+                            if(child.startsWith(ChunkManifest.CHUNK_PREFIX)){
+                                continue;
+                            }
+                            list("/".equals(path) ? "/" + child : path + "/" + child);
+                        }
+                        break;
+                    case NONODE:
+                        break;
+                    default:
+                        failed = true;
+                }
+                if(pending.decrementAndGet() == 0){
+                    dispatcher.dispatch(TreeWatcherCallback.this.path, this::finish);
+                }
+            }
+
+            private void finish() {
+                if(closed){
+                    return;
+                }
+                if(failed){
+                    // connection lost or expired again. caught up by the next reconnection or replay
+                    logger.warn("cannot read the subtree at {}", TreeWatcherCallback.this.path);
+                    return;
+                }
+                for (String path : known.keySet()) {
+                    if(!found.contains(path)){
+                        logger.info("node {} deleted while not watching", path);
+                        known.remove(path);
+                        if(onDelete != null){
+                            onDelete.accept(path);
+                        }
+                    }
+                }
+                for (String path : found) {
+                    dispatcher.dispatch(path, () -> read(path));
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,63 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * how configs are laid out in node data: when they are compressed, how they are split into chunks,
+ * and how large a config is read at most.
+ * <br/>
+ * Set once from the properties when the application starts, the defaults are used otherwise.
+ * {@link ConfigPublisher} compresses and splits by them, {@link ChunkReader} and the {@link DeflateCodec}
+ * registered in {@link Codecs} refuse configs above the largest size.
+ */
+@Component
+public class ConfigPayloadSettings {
+    /**
+     * configs encoded larger than this are compressed before publishing, in byte
+     */
+    private static int COMPRESS_THRESHOLD = 16 * 1024;
+    /**
+     * configs still larger than this after compressing are published in chunks of this size, in byte.
+     * keep it well below jute.maxbuffer, 1MB by default
+     */
+    private static int CHUNK_SIZE = 512 * 1024;
+    /**
+     * largest config read, in byte after inflating and joining the chunks.
+     * the sizes in compressed and chunked data are taken from the node, so a broken or forged one is refused above it
+     */
+    private static int MAX_CONFIG_SIZE = 64 * 1024 * 1024;
+
+    @Value("${zookeeper.compress-threshold:16384}")Integer compressThreshold;
+    @Value("${zookeeper.chunk-size:524288}")Integer chunkSize;
+    @Value("${zookeeper.max-config-size:67108864}")Integer maxConfigSize;
+    @PostConstruct
+    void postConstruct(){
+        COMPRESS_THRESHOLD = compressThreshold;
+        CHUNK_SIZE = Math.max(1024, chunkSize);
+        MAX_CONFIG_SIZE = Math.max(1024, maxConfigSize);
+    }
+
+    /**
+     * @return configs encoded larger than this are compressed before publishing, in byte
+     */
+    public static int getCompressThreshold() {
+        return COMPRESS_THRESHOLD;
+    }
+
+    /**
+     * @return configs larger than this after compressing are published in chunks of this size, in byte
+     */
+    public static int getChunkSize() {
+        return CHUNK_SIZE;
+    }
+
+    /**
+     * @return largest config read, in byte after inflating and joining the chunks
+     */
+    public static int getMaxConfigSize() {
+        return MAX_CONFIG_SIZE;
+    }
+}
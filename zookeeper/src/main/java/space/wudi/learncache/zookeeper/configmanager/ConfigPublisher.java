@@ -6,62 +6,139 @@ import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import space.wudi.learncache.zookeeper.util.CallbackDispatcher;
+import space.wudi.learncache.zookeeper.util.EnsurePath;
+import space.wudi.learncache.zookeeper.util.Futures;
 import space.wudi.learncache.zookeeper.util.ZooKeeperResult;
-import space.wudi.learncache.zookeeper.util.ZooKeeperResultHolder;
 import space.wudi.learncache.zookeeper.util.ZooKeeperSession;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 /**
  * a publisher to send new config or config updates.
  * one publisher can send multiple configs.
+ * <br/>
+ * A config encoded larger than {@link ConfigPayloadSettings#getCompressThreshold()} is compressed by {@link DeflateCodec}.
+ * One still larger than {@link ConfigPayloadSettings#getChunkSize()} is split into chunk nodes beneath the config node,
+ * and the config node holds a {@link ChunkManifest} of them. {@link ConfigListener} puts them together again.
+ * <br/>
+ * Nodes published or found existing are remembered with their versions, so a known node is set at once
+ * rather than failing to create it first. {@link #publishAll} publishes many configs in one transaction.
  */
 public class ConfigPublisher {
     private static final Logger logger = LoggerFactory.getLogger(ConfigPublisher.class);
+    /**
+     * data of a config node created only to hold chunks, until the manifest is set
+     */
+    private static final byte[] NO_DATA = new byte[0];
+    /**
+     * how many times a chunked publish retries its requests before giving up
+     */
+    private static final int MAX_ATTEMPTS = 10;
+    /**
+     * the largest request the server takes, jute.maxbuffer less some room for the header
+     */
+    private static final int MAX_REQUEST = Integer.getInteger("jute.maxbuffer", 0xfffff) - 1024;
     /**
      * zookeeper session (or connection)
      */
     private ZooKeeper zk;
+    /**
+     * closed by {@link #close()}. the session is given back, and no more config is published.
+     * zk is kept rather than cleared, for the publishes already running
+     */
+    private volatile boolean closed;
     /**
      * remembers the root to listening
      */
     private final String root;
     /**
-     * create a publisher to publish config beneath root
+     * runs callbacks out of the event thread, in order per path
+     */
+    private final CallbackDispatcher dispatcher = CallbackDispatcher.getDefault();
+    /**
+     * creates the missing parents of a config path
+     */
+    private final EnsurePath parents;
+    /**
+     * encodes configs into node data
+     */
+    private final Codec codec;
+    /**
+     * config nodes known to exist, with the version last published or seen. decides to create or to set a node
+     */
+    private final ConcurrentMap<String, Integer> versions = new ConcurrentHashMap<>();
+    /**
+     * create a publisher to publish config beneath root, in the format of {@link Codecs#getDefault()}
      * @param root the root to be listened
      * @throws IOException in cases of network failure
      * @throws InterruptedException if the current thread is interrupted while waiting
      */
     public ConfigPublisher(String root) throws IOException, InterruptedException {
+        this(root, Codecs.getDefault());
+    }
+    /**
+     * create a publisher to publish config beneath root
+     * @param root the root to be listened
+     * @param codec format of the published configs. listeners read any format known by {@link Codecs}
+     * @throws IOException in cases of network failure
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public ConfigPublisher(String root, Codec codec) throws IOException, InterruptedException {
         this.root = root;
+        this.parents = EnsurePath.of(root);
+        this.codec = codec;
         connect();
     }
     /**
-     * connect to zookeeper servers. if already have a connection, release it.
+     * connect to zookeeper servers. if already have a connection, give it back.
      * @throws InterruptedException if the current thread is interrupted while waiting
      * @throws IOException in cases of network failure
+     * @throws IllegalStateException if closed meanwhile
      */
-    private void connect() throws InterruptedException, IOException {
+    private synchronized void connect() throws InterruptedException, IOException {
+        if(closed){
+            throw new IllegalStateException("publisher of " + root + " is closed");
+        }
         logger.info("connect to zookeeper server");
         if(this.zk != null){
-            zk.close();
+            // the session is shared with others. give it back rather than close it
+            ZooKeeperSession.releaseZooKeeperClient(zk);
         }
         this.zk = ZooKeeperSession.getZooKeeperClient(this.root);
     }
     /**
-     * check if current connection is alive. if not, reconnect
+     * check if current session is alive. if not, reconnect.
+     * a disconnected session is still alive, it reconnects by itself
      * @throws IOException in cases of network failure
      * @throws InterruptedException if the current thread is interrupted while waiting
+     * @throws IllegalStateException if closed
      */
     private void checkConnecting() throws IOException, InterruptedException {
-        if(!this.zk.getState().isConnected()){
+        if(closed){
+            throw new IllegalStateException("publisher of " + root + " is closed");
+        }
+        if(!this.zk.getState().isAlive()){
             connect();
         }
     }
 
     /**
-     * start to listen to a config node at path
+     * give back the zookeeper session. this object should not be used any more
+     */
+    public synchronized void close() {
+        if(closed){
+            return;
+        }
+        closed = true;
+        ZooKeeperSession.releaseZooKeeperClient(zk);
+    }
+
+    /**
+     * publish config to path and wait for the result
      * @param config the config to be published
      * @param configPath the config to be store at
      * @param acls the Access Control List, null to use default
@@ -69,36 +146,125 @@ public class ConfigPublisher {
      * @throws InterruptedException if the current thread is interrupted while waiting
      */
     public ZooKeeperResult<String> publish(Config config, String configPath, List<ACL> acls) throws IOException, InterruptedException {
-        checkConnecting();
-        byte[] configData = config.toBytes();
+        return Futures.await(publishAsync(config, configPath, acls));
+    }
+
+    /**
+     * publish config to path without blocking.
+     * create the node together with missing parents, or update it if already exists
+     * @param config the config to be published
+     * @param configPath the config to be store at
+     * @param acls the Access Control List, null to use default
+     * @return a future of the result. completes exceptionally if failed before sending to zookeeper.
+     * completed out of the dispatcher, so its dependents may block on other calls, like {@link #publish}
+     */
+    public CompletableFuture<ZooKeeperResult<String>> publishAsync(Config config, String configPath, List<ACL> acls) {
+        byte[] configData;
+        try {
+            checkConnecting();
+            configData = encode(config, configPath);
+        } catch (IOException e) {
+            return Futures.failed(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Futures.failed(e);
+        }
         List<ACL> realAcls = acls == null ? ZooDefs.Ids.OPEN_ACL_UNSAFE : acls;
-        CountDownLatch cdl = new CountDownLatch(1);
-        PublishCallback publishCallback = new PublishCallback(cdl);
-        zk.create(configPath, configData, realAcls, CreateMode.PERSISTENT, publishCallback, configData);
-        ZooKeeperResult<String> result = publishCallback.getResult();
+        if(configData.length > ConfigPayloadSettings.getChunkSize()){
+            return new ChunkedPublish(configPath, configData, realAcls).start();
+        }
+        PublishCallback publishCallback = new PublishCallback(realAcls);
+        if(versions.containsKey(configPath)){
+            // known to exist, no need to try creating it
+            zk.setData(configPath, configData, -1, publishCallback, configData);
+        }else{
+            parents.create(zk, configPath, configData, realAcls, CreateMode.PERSISTENT, publishCallback, configData);
+        }
+        return publishCallback.future;
+    }
+
+    /**
+     * publish configs all or none in one transaction and wait for the result
+     * @param configs the configs to be published, by the paths to be stored at
+     * @param acls the Access Control List of the nodes created, null to use default
+     * @return the result with the paths published, parents before children
+     * @throws IOException in cases of network failure, or the configs do not fit in one request
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public ZooKeeperResult<List<String>> publishAll(Map<String, Config> configs, List<ACL> acls) throws IOException, InterruptedException {
+        return Futures.await(publishAllAsync(configs, acls));
+    }
+
+    /**
+     * publish configs all or none in one multi request without blocking, so listeners see all of them change at one zxid.
+     * <br/>
+     * Each node is created or set by whether it is known to exist, and missing parents are created in the same request.
+     * If a node turns out otherwise, which fails the whole request, every node is checked and the request sent again.
+     * The request must fit in jute.maxbuffer, and no config is published in chunks this way
+     * @param configs the configs to be published, by the paths to be stored at
+     * @param acls the Access Control List of the nodes created, null to use default
+     * @return a future of the result with the paths published. completes exceptionally if failed before sending to zookeeper
+     */
+    public CompletableFuture<ZooKeeperResult<List<String>>> publishAllAsync(Map<String, Config> configs, List<ACL> acls) {
+        // parents before children, in case both are created
+        SortedMap<String, byte[]> data = new TreeMap<>(EnsurePath.TOP_DOWN);
         try {
-            cdl.await();
-        } catch (InterruptedException ignored) {
+            checkConnecting();
+            int size = 0;
+            for (Map.Entry<String, Config> entry : configs.entrySet()) {
+                byte[] configData = encode(entry.getValue(), entry.getKey());
+                size += entry.getKey().length() + configData.length;
+                data.put(entry.getKey(), configData);
+            }
+            if(size > MAX_REQUEST){
+                throw new IOException(configs.size() + " configs of " + size + " bytes do not fit in one request of " + MAX_REQUEST + " bytes");
+            }
+        } catch (IOException e) {
+            return Futures.failed(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Futures.failed(e);
         }
-        return result;
+        if(data.isEmpty()){
+            return CompletableFuture.completedFuture(ZooKeeperResult.of(Code.OK, Collections.emptyList(), null));
+        }
+        return new BatchPublish(data, acls == null ? ZooDefs.Ids.OPEN_ACL_UNSAFE : acls).start();
+    }
+
+    /**
+     * encode a config by the codec, and compress it if large
+     * @param config the config
+     * @param configPath where it is published, for logging
+     * @return data of the node
+     */
+    private byte[] encode(Config config, String configPath) throws IOException {
+        byte[] configData = codec.encode(config);
+        if(configData.length > ConfigPayloadSettings.getCompressThreshold() && configData[0] != DeflateCodec.FORMAT){
+            byte[] deflated = DeflateCodec.deflate(configData);
+            logger.info("config to {} compressed from {} to {} bytes", configPath, configData.length, deflated.length);
+            if(deflated.length < configData.length){
+                configData = deflated;
+            }
+        }
+        return configData;
     }
 
     /**
      * an object used as multiple callback for ConfigPublisher
      */
-    private class PublishCallback extends ZooKeeperResultHolder<String> implements AsyncCallback.StringCallback, AsyncCallback.StatCallback {
+    private class PublishCallback implements AsyncCallback.Create2Callback, AsyncCallback.StatCallback {
 
         /**
-         * synchronizer
+         * completes when published or failed
          */
-        private final CountDownLatch cdl;
-
+        private final CompletableFuture<ZooKeeperResult<String>> future = new CompletableFuture<>();
         /**
-         * create a publisher. use CountDownLatch to wait until results prepared
-         * @param cdl the synchronizer
+         * acl to create the node with
          */
-        PublishCallback(CountDownLatch cdl) {
-            this.cdl = cdl;
+        private final List<ACL> acls;
+
+        PublishCallback(List<ACL> acls) {
+            this.acls = acls;
         }
 
         /**
@@ -107,11 +273,16 @@ public class ConfigPublisher {
          * @param path query path
          * @param configData byte[] of the config
          * @param name node name. usually the same to path unless use {@link CreateMode#PERSISTENT_SEQUENTIAL} or {@link CreateMode#EPHEMERAL_SEQUENTIAL}
+         * @param stat stat of the created node. null if created together with its parents
          */
         @Override
-        public void processResult(int rc, String path, Object configData, String name) {
+        public void processResult(int rc, String path, Object configData, String name, Stat stat) {
+            // leave the event thread at once
+            dispatcher.dispatch(path, () -> onCreated(rc, path, configData, stat));
+        }
+
+        private void onCreated(int rc, String path, Object configData, Stat stat) {
             Code code = Code.get(rc);
-            result.setCode(code);
             switch(code){
                 case NODEEXISTS:
                     logger.info("node exists. updating");
@@ -119,14 +290,12 @@ public class ConfigPublisher {
                     break;
                 case OK:
                     logger.info("node created.");
-                    result.setData(path);
-                    result.setStat(null);
-                    result.setThrowable(null);
-                    cdl.countDown();
+                    versions.put(path, stat == null ? 0 : stat.getVersion());
+                    Futures.completeAsync(future, ZooKeeperResult.of(code, path, stat));
                     break;
                 default:
                     logger.warn("unexpect rc while creating. rc = {}", code);
-                    cdl.countDown();
+                    Futures.completeAsync(future, ZooKeeperResult.of(code, null, null));
             }
         }
 
@@ -137,21 +306,381 @@ public class ConfigPublisher {
          * @param stat node stat info. only exists when node exists
          */
         @Override
-        public void processResult(int rc, String path, Object ctx, Stat stat) {
+        public void processResult(int rc, String path, Object configData, Stat stat) {
+            dispatcher.dispatch(path, () -> onUpdated(rc, path, configData, stat));
+        }
+
+        private void onUpdated(int rc, String path, Object configData, Stat stat) {
             Code code = Code.get(rc);
-            result.setCode(code);
             switch(code){
+                case NONODE:
+                    logger.info("node known to exist is gone. creating");
+                    versions.remove(path);
+                    parents.create(zk, path, (byte[])configData, acls, CreateMode.PERSISTENT, this, configData);
+                    break;
                 case OK:
                     logger.info("update success");
-                    result.setData(path);
-                    result.setStat(stat);
-                    result.setThrowable(null);
-                    cdl.countDown();
+                    versions.put(path, stat.getVersion());
+                    if(stat.getNumChildren() > 0){
+                        // may have been published in chunks before
+                        deleteChunks(path);
+                    }
+                    Futures.completeAsync(future, ZooKeeperResult.of(code, path, stat));
                     break;
                 default:
                     logger.warn("unexpect rc while updating. rc = {}", code);
-                    cdl.countDown();
+                    Futures.completeAsync(future, ZooKeeperResult.of(code, null, null));
+            }
+        }
+    }
+
+    /**
+     * delete the chunks left beneath a config node no longer published in chunks. nothing waits for it
+     * @param path the config node
+     */
+    private void deleteChunks(String path) {
+        zk.getChildren(path, false, (rc, p, ctx, children) -> {
+            if(Code.get(rc) != Code.OK){
+                return;
+            }
+            for (String child : children) {
+                if(child.startsWith(ChunkManifest.CHUNK_PREFIX)){
+                    zk.delete(path + "/" + child, -1, (deleteRc, deleted, deleteCtx) ->
+                            logger.debug("delete chunk {}: {}", deleted, Code.get(deleteRc)), null);
+                }
+            }
+        }, null);
+    }
+
+    /**
+     * publish a config too large for one node.
+     * <br/>
+     * The chunks are created first beneath the config node, named by a new generation so nobody reads them yet.
+     * Then one multi request sets the manifest of them into the config node and deletes the chunks of the config before,
+     * so a listener sees either the old config or the new one. A multi request is as limited by jute.maxbuffer as
+     * a node, so the chunks cannot be created in it.
+     * <br/>
+     * If it fails halfway, the chunks created are deleted by the next publish to the same path
+     */
+    private class ChunkedPublish implements AsyncCallback.Create2Callback, AsyncCallback.Children2Callback, AsyncCallback.MultiCallback {
+        private final CompletableFuture<ZooKeeperResult<String>> future = new CompletableFuture<>();
+        private final String path;
+        private final byte[] data;
+        private final List<ACL> acls;
+        private final ChunkManifest manifest;
+        /**
+         * chunks not created yet
+         */
+        private int pending;
+        /**
+         * requests failed in a row
+         */
+        private int attempts;
+        private boolean failed;
+
+        ChunkedPublish(String path, byte[] data, List<ACL> acls) {
+            this.path = path;
+            this.data = data;
+            this.acls = acls;
+            this.manifest = ChunkManifest.of(data, ConfigPayloadSettings.getChunkSize());
+            this.pending = manifest.chunks;
+        }
+
+        CompletableFuture<ZooKeeperResult<String>> start() {
+            logger.info("publish {} bytes to {} in {} chunks", data.length, path, manifest.chunks);
+            // the parent of the chunks. listeners skip it while it has no data
+            parents.create(zk, path, NO_DATA, acls, CreateMode.PERSISTENT, this, null);
+            return future;
+        }
+
+        /**
+         * callback of creating the config node and the chunks
+         * @param chunk index of the chunk, null for the config node
+         */
+        @Override
+        public void processResult(int rc, String path, Object chunk, String name, Stat stat) {
+            dispatcher.dispatch(this.path, () -> {
+                if(chunk == null){
+                    onNodeCreated(rc);
+                }else{
+                    onChunkCreated(rc, (Integer)chunk);
+                }
+            });
+        }
+
+        private void onNodeCreated(int rc) {
+            Code code = Code.get(rc);
+            switch(code){
+                case OK:
+                case NODEEXISTS:
+                    attempts = 0;
+                    for (int i = 0; i < manifest.chunks; i++) {
+                        createChunk(i);
+                    }
+                    break;
+                case CONNECTIONLOSS:
+                    retry(code, this::start);
+                    break;
+                default:
+                    fail(code);
+            }
+        }
+
+        private void createChunk(int index) {
+            int from = index * manifest.chunkSize;
+            byte[] chunk = Arrays.copyOfRange(data, from, from + manifest.chunkLength(index));
+            zk.create(manifest.chunkPath(path, index), chunk, acls, CreateMode.PERSISTENT, this, index);
+        }
+
+        private void onChunkCreated(int rc, int index) {
+            if(failed){
+                return;
+            }
+            Code code = Code.get(rc);
+            switch(code){
+                case OK:
+                case NODEEXISTS:
+                    // exists if created by a request retried after connection loss
+                    if(--pending == 0){
+                        attempts = 0;
+                        listChunks();
+                    }
+                    break;
+                case CONNECTIONLOSS:
+                    retry(code, () -> createChunk(index));
+                    break;
+                default:
+                    fail(code);
             }
         }
+
+        /**
+         * find the chunks of the config before, to delete them together with setting the manifest
+         */
+        private void listChunks() {
+            zk.getChildren(path, false, this, null);
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> children, Stat stat) {
+            dispatcher.dispatch(this.path, () -> onChunksListed(rc, children));
+        }
+
+        private void onChunksListed(int rc, List<String> children) {
+            Code code = Code.get(rc);
+            switch(code){
+                case OK:
+                    List<Op> ops = new ArrayList<>();
+                    ops.add(Op.setData(path, manifest.encode(), -1));
+                    for (String child : children) {
+                        if(child.startsWith(ChunkManifest.CHUNK_PREFIX) && !manifest.owns(child)){
+                            ops.add(Op.delete(path + "/" + child, -1));
+                        }
+                    }
+                    zk.multi(ops, this, null);
+                    break;
+                case CONNECTIONLOSS:
+                    retry(code, this::listChunks);
+                    break;
+                default:
+                    fail(code);
+            }
+        }
+
+        /**
+         * callback of the multi request setting the manifest
+         */
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<OpResult> opResults) {
+            dispatcher.dispatch(this.path, () -> onManifestSet(rc, opResults));
+        }
+
+        private void onManifestSet(int rc, List<OpResult> opResults) {
+            Code code = Code.get(rc);
+            switch(code){
+                case OK:
+                    logger.info("{} chunks published to {}", manifest.chunks, path);
+                    Stat stat = ((OpResult.SetDataResult)opResults.get(0)).getStat();
+                    versions.put(path, stat.getVersion());
+                    Futures.completeAsync(future, ZooKeeperResult.of(code, path, stat));
+                    break;
+                case NONODE:
+                    // a chunk before is deleted by another publisher meanwhile. list again
+                case CONNECTIONLOSS:
+                    // may be done or not. setting it again does no harm
+                    retry(code, this::listChunks);
+                    break;
+                default:
+                    fail(code);
+            }
+        }
+
+        private void retry(Code code, Runnable request) {
+            if(failed){
+                return;
+            }
+            if(attempts >= MAX_ATTEMPTS){
+                fail(code);
+                return;
+            }
+            int attempt = attempts++;
+            logger.info("{} while publishing chunks to {}, retry {}", code, path, attempt + 1);
+            ZooKeeperSession.retryLater(attempt, () -> dispatcher.dispatch(path, request));
+        }
+
+        private void fail(Code code) {
+            if(failed){
+                return;
+            }
+            failed = true;
+            logger.warn("unexpect rc while publishing chunks to {}. rc = {}", path, code);
+            Futures.completeAsync(future, ZooKeeperResult.of(code, null, null));
+        }
+    }
+
+    /**
+     * configs published in one multi request by {@link #publishAll}
+     */
+    private class BatchPublish implements AsyncCallback.MultiCallback, AsyncCallback.StatCallback {
+        private final CompletableFuture<ZooKeeperResult<List<String>>> future = new CompletableFuture<>();
+        /**
+         * data by path, parents before children
+         */
+        private final SortedMap<String, byte[]> data;
+        private final List<ACL> acls;
+        /**
+         * requests failed in a row
+         */
+        private int attempts;
+        /**
+         * nodes not checked yet
+         */
+        private int checking;
+        /**
+         * a check failed, check all again
+         */
+        private boolean checkFailed;
+
+        BatchPublish(SortedMap<String, byte[]> data, List<ACL> acls) {
+            this.data = data;
+            this.acls = acls;
+        }
+
+        CompletableFuture<ZooKeeperResult<List<String>>> start() {
+            logger.info("publish {} configs in one request", data.size());
+            send();
+            return future;
+        }
+
+        private void send() {
+            List<Op> ops = new ArrayList<>(data.size());
+            for (Map.Entry<String, byte[]> entry : data.entrySet()) {
+                if(versions.containsKey(entry.getKey())){
+                    ops.add(Op.setData(entry.getKey(), entry.getValue(), -1));
+                }else{
+                    ops.add(Op.create(entry.getKey(), entry.getValue(), acls, CreateMode.PERSISTENT));
+                }
+            }
+            parents.multi(zk, ops, this, null);
+        }
+
+        /**
+         * callback of the multi request
+         */
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<OpResult> opResults) {
+            dispatcher.dispatch(root, () -> onPublished(rc, opResults));
+        }
+
+        private void onPublished(int rc, List<OpResult> opResults) {
+            Code code = Code.get(rc);
+            switch(code){
+                case OK:
+                    logger.info("{} configs published", data.size());
+                    Iterator<String> paths = data.keySet().iterator();
+                    for (OpResult result : opResults) {
+                        String path = paths.next();
+                        if(result instanceof OpResult.SetDataResult){
+                            Stat stat = ((OpResult.SetDataResult) result).getStat();
+                            versions.put(path, stat.getVersion());
+                            if(stat.getNumChildren() > 0){
+                                deleteChunks(path);
+                            }
+                        }else{
+                            versions.put(path, 0);
+                        }
+                    }
+                    Futures.completeAsync(future, ZooKeeperResult.of(code, new ArrayList<>(data.keySet()), null));
+                    break;
+                case NODEEXISTS:
+                case NONODE:
+                    // created or deleted by someone else
+                case CONNECTIONLOSS:
+                    // may be done or not
+                    retry(code, this::check);
+                    break;
+                default:
+                    fail(code);
+            }
+        }
+
+        /**
+         * learn which nodes exist, to send the request again
+         */
+        private void check() {
+            checking = data.size();
+            checkFailed = false;
+            for (String path : data.keySet()) {
+                zk.exists(path, false, this, null);
+            }
+        }
+
+        /**
+         * callback of zookeeper.exists in {@link #check}
+         */
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            dispatcher.dispatch(root, () -> onChecked(rc, path, stat));
+        }
+
+        private void onChecked(int rc, String path, Stat stat) {
+            switch(Code.get(rc)){
+                case OK:
+                    versions.put(path, stat.getVersion());
+                    break;
+                case NONODE:
+                    versions.remove(path);
+                    break;
+                default:
+                    checkFailed = true;
+            }
+            if(--checking == 0){
+                if(checkFailed){
+                    retry(Code.CONNECTIONLOSS, this::check);
+                }else{
+                    send();
+                }
+            }
+        }
+
+        private void retry(Code code, Runnable request) {
+            if(attempts >= MAX_ATTEMPTS){
+                fail(code);
+                return;
+            }
+            int attempt = attempts++;
+            logger.info("{} while publishing {} configs, retry {}", code, data.size(), attempt + 1);
+            if(code != Code.CONNECTIONLOSS){
+                // nothing to wait for
+                request.run();
+                return;
+            }
+            ZooKeeperSession.retryLater(attempt, () -> dispatcher.dispatch(root, request));
+        }
+
+        private void fail(Code code) {
+            logger.warn("unexpect rc while publishing {} configs. rc = {}", data.size(), code);
+            Futures.completeAsync(future, ZooKeeperResult.of(code, null, null));
+        }
     }
 }
@@ -0,0 +1,72 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * the config of one path at one moment, with the version of the node it is read from.
+ * never changes once made, do not modify the config in it either
+ */
+public final class ConfigSnapshot {
+    private final Config config;
+    /**
+     * zxid of the last modification of the node. orders every change of the node, even across delete and create
+     */
+    private final long mzxid;
+    /**
+     * data version of the node. starts again from 0 when the node is created again
+     */
+    private final int version;
+
+    ConfigSnapshot(Config config, long mzxid, int version) {
+        this.config = config;
+        this.mzxid = mzxid;
+        this.version = version;
+    }
+
+    ConfigSnapshot(Config config, Stat stat) {
+        this(config, stat.getMzxid(), stat.getVersion());
+    }
+
+    /**
+     * @return the config, null if the node is deleted
+     */
+    public Config getConfig() {
+        return config;
+    }
+
+    public long getMzxid() {
+        return mzxid;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isDeleted() {
+        return config == null;
+    }
+
+    /**
+     * @param other snapshot of the same path
+     * @return true if this is from a later modification of the node
+     */
+    boolean isNewerThan(ConfigSnapshot other) {
+        return mzxid > other.mzxid;
+    }
+
+    /**
+     * @return the snapshot of the deleted node, which older snapshots cannot replace
+     */
+    ConfigSnapshot deleted() {
+        return new ConfigSnapshot(null, mzxid, version);
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigSnapshot{" +
+                "config=" + config +
+                ", mzxid=" + mzxid +
+                ", version=" + version +
+                '}';
+    }
+}
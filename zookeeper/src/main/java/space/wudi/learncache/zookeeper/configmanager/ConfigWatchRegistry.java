@@ -0,0 +1,202 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import org.apache.zookeeper.KeeperException.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+import space.wudi.learncache.zookeeper.util.CallbackDispatcher;
+import space.wudi.learncache.zookeeper.util.ZooKeeperResult;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * shares the watch of a config node among its subscribers in this process.
+ * <br/>
+ * However many subscribers a path has, it is watched and read once per change by one {@link ConfigListener},
+ * and the config decoded is passed to every subscriber. So the config object is shared, never modify it.
+ * A new subscriber of a path already read gets the last config at once.
+ * When the last subscriber of a path leaves, the watch is removed, see {@link ConfigListener#unlisten}.
+ * <br/>
+ * Callbacks of a path run in order on {@link CallbackDispatcher#getConsumerDefault()}, one subscriber after another
+ */
+public class ConfigWatchRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(ConfigWatchRegistry.class);
+    /**
+     * one instance per chroot, paths are relative to it
+     */
+    private static final ConcurrentMap<String, ConfigWatchRegistry> INSTANCES = new ConcurrentHashMap<>();
+
+    private final String root;
+    private final CallbackDispatcher consumers = CallbackDispatcher.getConsumerDefault();
+    /**
+     * watches by path. guarded by this
+     */
+    private final Map<String, SharedWatch> watches = new HashMap<>();
+    /**
+     * created by the first subscriber. guarded by this
+     */
+    private ConfigListener listener;
+
+    private ConfigWatchRegistry(String root) {
+        this.root = root;
+    }
+
+    /**
+     * @param root the root of the config nodes
+     * @return the instance shared by all subscribers of root
+     */
+    public static ConfigWatchRegistry of(String root) {
+        return INSTANCES.computeIfAbsent(root, ConfigWatchRegistry::new);
+    }
+
+    /**
+     * start to receive the config at path, watching it if nobody in this process does
+     * @param path a path relative to root
+     * @param onChange takes the config when read, including the first time. shared with other subscribers, never modify it
+     * @param onDelete takes the path when the node is deleted
+     * @return the subscription, close it to stop receiving
+     * @throws IOException in cases of network failure
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public Subscription subscribe(String path, Consumer<ZooKeeperResult<Config>> onChange, @Nullable Consumer<String> onDelete)
+            throws IOException, InterruptedException {
+        Subscription subscription = new Subscription(path, onChange, onDelete);
+        SharedWatch known;
+        synchronized (this){
+            if(listener == null){
+                listener = new ConfigListener(root, 0, consumers);
+            }
+            known = watches.get(path);
+            if(known == null){
+                SharedWatch watch = new SharedWatch();
+                watch.subscribers.add(subscription);
+                watches.put(path, watch);
+                logger.info("watch {} for the first subscriber", path);
+                listener.listen(path, watch::onChange, true, null, watch::onDelete, p -> true, p -> true);
+                return subscription;
+            }
+            known.subscribers.add(subscription);
+        }
+        // after the callbacks of the path dispatched before, so nothing older comes after it.
+        // one dispatched meanwhile passes the same or a newer result, which is passed once
+        consumers.dispatch(path, () -> known.catchUp(subscription));
+        return subscription;
+    }
+
+    /**
+     * @return how many paths are watched
+     */
+    public synchronized int size() {
+        return watches.size();
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        SharedWatch watch = watches.get(subscription.path);
+        if(watch == null || !watch.subscribers.remove(subscription) || !watch.subscribers.isEmpty()){
+            return;
+        }
+        watches.remove(subscription.path);
+        logger.info("the last subscriber of {} left, removing the watch", subscription.path);
+        listener.unlistenAsync(subscription.path).thenAccept(result -> {
+            if(result.getCode() != Code.OK){
+                logger.warn("cannot remove the watch of {}: {}", subscription.path, result.getCode());
+            }
+        });
+    }
+
+    /**
+     * the watch of one path, and its subscribers
+     */
+    private static class SharedWatch {
+        private final List<Subscription> subscribers = new CopyOnWriteArrayList<>();
+        /**
+         * the last result passed, null if none or deleted since
+         */
+        private volatile ZooKeeperResult<Config> latest;
+
+        void onChange(ZooKeeperResult<Config> result) {
+            latest = result;
+            for (Subscription subscription : subscribers) {
+                subscription.accept(result);
+            }
+        }
+
+        void onDelete(String path) {
+            latest = null;
+            for (Subscription subscription : subscribers) {
+                subscription.deleted(path);
+            }
+        }
+
+        /**
+         * pass the last result to a new subscriber
+         */
+        void catchUp(Subscription subscription) {
+            ZooKeeperResult<Config> result = latest;
+            if(result != null){
+                subscription.accept(result);
+            }
+        }
+    }
+
+    /**
+     * a subscriber of one path
+     */
+    public class Subscription implements AutoCloseable {
+        private final String path;
+        private final Consumer<ZooKeeperResult<Config>> onChange;
+        private final Consumer<String> onDelete;
+        /**
+         * the last result passed, to pass each one once
+         */
+        private ZooKeeperResult<Config> last;
+        private volatile boolean closed;
+
+        private Subscription(String path, Consumer<ZooKeeperResult<Config>> onChange, Consumer<String> onDelete) {
+            this.path = path;
+            this.onChange = onChange;
+            this.onDelete = onDelete;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        private void accept(ZooKeeperResult<Config> result) {
+            if(closed || result == last){
+                return;
+            }
+            last = result;
+            onChange.accept(result);
+        }
+
+        private void deleted(String path) {
+            if(closed){
+                return;
+            }
+            last = null;
+            if(onDelete != null){
+                onDelete.accept(path);
+            }
+        }
+
+        /**
+         * stop receiving. the watch is removed if this is the last subscriber of the path
+         */
+        @Override
+        public void close() {
+            if(closed){
+                return;
+            }
+            closed = true;
+            unsubscribe(this);
+        }
+    }
+}
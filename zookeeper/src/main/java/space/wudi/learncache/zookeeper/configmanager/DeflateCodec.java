@@ -0,0 +1,143 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.function.IntSupplier;
+import java.util.zip.Inflater;
+
+/**
+ * the data of another codec, compressed by deflate. the inner data keeps its own format tag.
+ * <pre>
+ * | 0x02 | length of the inner data: int32 | deflate stream of the inner data |
+ * </pre>
+ * {@link ConfigPublisher} uses it for configs above {@link ConfigPayloadSettings#getCompressThreshold()}
+ */
+public class DeflateCodec implements Codec {
+    public static final byte FORMAT = 0x02;
+    private static final int HEADER = 1 + Integer.BYTES;
+    /**
+     * the least room to inflate into before growing, in byte
+     */
+    private static final int INITIAL_BUFFER = 64 * 1024;
+
+    /**
+     * encodes before compressing
+     */
+    private final Codec inner;
+    /**
+     * largest inner data inflated, in byte
+     */
+    private final IntSupplier maxSize;
+
+    /**
+     * inflate up to {@link ConfigPayloadSettings#getMaxConfigSize()}
+     * @param inner encodes before compressing
+     */
+    public DeflateCodec(Codec inner) {
+        this(inner, ConfigPayloadSettings::getMaxConfigSize);
+    }
+
+    /**
+     * @param inner encodes before compressing
+     * @param maxSize largest inner data inflated, in byte
+     */
+    public DeflateCodec(Codec inner, int maxSize) {
+        this(inner, () -> maxSize);
+    }
+
+    private DeflateCodec(Codec inner, IntSupplier maxSize) {
+        this.inner = inner;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public byte getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public byte[] encode(Config config) throws IOException {
+        return deflate(inner.encode(config));
+    }
+
+    @Override
+    public Config decode(byte[] data) throws IOException {
+        return decode(data, 0, data.length);
+    }
+
+    @Override
+    public Config decode(byte[] data, int offset, int length) throws IOException {
+        return Codecs.decode(inflate(data, offset, length, maxSize.getAsInt()));
+    }
+
+    /**
+     * @param data encoded by any codec
+     * @return data compressed, with the header of this format
+     */
+    public static byte[] deflate(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER + data.length / 4);
+        out.write(FORMAT);
+        out.write(data.length >>> 24);
+        out.write(data.length >>> 16);
+        out.write(data.length >>> 8);
+        out.write(data.length);
+        Deflater deflater = new Deflater();
+        try(DeflaterOutputStream stream = new DeflaterOutputStream(out, deflater, 64 * 1024)){
+            stream.write(data);
+        } catch (IOException e) {
+            // never thrown by a byte array
+            throw new IllegalStateException(e);
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * inflate into a buffer growing with the output, up to the length in the header.
+     * the length is taken from the node, so it is not trusted before that much is really inflated
+     * @param maxSize largest inner data taken, in byte
+     * @return the inner data
+     * @throws IOException if the data is not of this format, broken, or larger than maxSize
+     */
+    private static byte[] inflate(byte[] data, int offset, int length, int maxSize) throws IOException {
+        if(length < HEADER || data[offset] != FORMAT){
+            throw new IOException("not of deflate format");
+        }
+        int size = (data[offset + 1] & 0xff) << 24 | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 8 | (data[offset + 4] & 0xff);
+        if(size <= 0){
+            throw new IOException("length " + size + " of inflated data");
+        }
+        if(size > maxSize){
+            throw new IOException("length " + size + " of inflated data, larger than " + maxSize);
+        }
+        byte[] inflated = new byte[(int)Math.min(size, Math.max(INITIAL_BUFFER, 4L * (length - HEADER)))];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset + HEADER, length - HEADER);
+            int read = 0;
+            while(read < size && !inflater.finished()){
+                if(read == inflated.length){
+                    inflated = Arrays.copyOf(inflated, (int)Math.min(size, 2L * inflated.length));
+                }
+                int n = inflater.inflate(inflated, read, inflated.length - read);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                    break;
+                }
+                read += n;
+            }
+            if(read != size || !inflater.finished()){
+                throw new IOException("inflated " + read + " bytes" + (inflater.finished() ? "" : " or more") + ", expected " + size);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+        return inflated;
+    }
+}
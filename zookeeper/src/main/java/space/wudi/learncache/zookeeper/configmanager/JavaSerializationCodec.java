@@ -0,0 +1,33 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import space.wudi.learncache.zookeeper.util.MySerializable;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+
+/**
+ * the format written before codecs, by {@link MySerializable}. its format tag is the first byte of the stream magic.
+ * keep publishing with it until every listener can read the new formats
+ */
+public class JavaSerializationCodec implements Codec {
+    public static final byte FORMAT = (byte)(ObjectStreamConstants.STREAM_MAGIC >>> 8);
+
+    @Override
+    public byte getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public byte[] encode(Config config) throws IOException {
+        return config.toBytes();
+    }
+
+    @Override
+    public Config decode(byte[] data) throws IOException {
+        try {
+            return MySerializable.fromBytes(data, Config.class);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}
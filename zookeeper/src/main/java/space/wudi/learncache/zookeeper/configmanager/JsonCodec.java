@@ -0,0 +1,48 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * the format tag '{', which is also where the JSON object starts, so the node reads as JSON in a zookeeper shell.
+ * <pre>
+ * {"config":"..."}
+ * </pre>
+ * needs jackson-databind, which is an optional dependency
+ */
+public class JsonCodec implements Codec {
+    public static final byte FORMAT = '{';
+    private static final String FIELD = "config";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Override
+    public byte getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public byte[] encode(Config config) throws IOException {
+        ObjectNode node = MAPPER.createObjectNode();
+        node.put(FIELD, config.getConfig());
+        return MAPPER.writeValueAsBytes(node);
+    }
+
+    @Override
+    public Config decode(byte[] data) throws IOException {
+        return decode(data, 0, data.length);
+    }
+
+    @Override
+    public Config decode(byte[] data, int offset, int length) throws IOException {
+        JsonNode node = MAPPER.readTree(data, offset, length);
+        if(node == null || !node.isObject()){
+            throw new IOException("not a JSON object: " + new String(data, offset, Math.min(length, 64), StandardCharsets.UTF_8));
+        }
+        JsonNode value = node.get(FIELD);
+        return new Config(value == null || value.isNull() ? null : value.asText());
+    }
+}
@@ -0,0 +1,63 @@
+package space.wudi.learncache.zookeeper.lock;
+
+/**
+ * a number that grows every time a lock is gained.
+ * <br/>
+ * Pass it along with every write done while holding the lock, and let the storage refuse a write with a
+ * token smaller than the last one it accepted. So a holder whose session expired unnoticed cannot overwrite
+ * what the next holder wrote.
+ * <br/>
+ * The serial number of a lock node is taken from the cversion of the lock directory, so it only grows within
+ * one directory. The directory is a container which the server removes when empty, and a new one counts from 0
+ * again. So the czxid of the directory comes first as an epoch, a directory created later has a larger one.
+ */
+public final class FencingToken implements Comparable<FencingToken> {
+    /**
+     * czxid of the lock directory
+     */
+    private final long epoch;
+    /**
+     * serial number of the lock node
+     */
+    private final long sequence;
+
+    FencingToken(long epoch, long sequence) {
+        this.epoch = epoch;
+        this.sequence = sequence;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public int compareTo(FencingToken other) {
+        int compare = Long.compare(epoch, other.epoch);
+        return compare != 0 ? compare : Long.compare(sequence, other.sequence);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        FencingToken that = (FencingToken) o;
+        return epoch == that.epoch && sequence == that.sequence;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(epoch) * 31 + Long.hashCode(sequence);
+    }
+
+    /**
+     * @return fixed width digits, so tokens compare as strings the same way as they do as objects
+     */
+    @Override
+    public String toString() {
+        return String.format("%019d-%010d", epoch, sequence);
+    }
+}
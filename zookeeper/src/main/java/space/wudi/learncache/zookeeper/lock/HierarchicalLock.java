@@ -0,0 +1,139 @@
+package space.wudi.learncache.zookeeper.lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * a distributed lock where threads of this process queue locally first.
+ * <br/>
+ * All HierarchicalLock of the same name in this process share one fair local lock.
+ * Only the head of the local queue holds a zookeeper node, so one process costs
+ * one node, one watch and one children listing per hand-off however many threads wait.
+ * <br/>
+ * When a thread unlocks while others of this process are waiting, the distributed lock
+ * is passed to the next local thread without talking to zookeeper, at most fairnessBudget
+ * times in a row. Then it is given back to zookeeper so other processes get their turn.
+ * If the waiters leave instead of taking it, it is given back as well.
+ * <br/>
+ * A thread holding the lock may lock again. Only its last unlock releases it.
+ */
+public class HierarchicalLock {
+    private static final Logger logger = LoggerFactory.getLogger(HierarchicalLock.class);
+    /**
+     * local hand-offs in a row before giving the lock back to zookeeper
+     */
+    public static final int DEFAULT_FAIRNESS_BUDGET = 16;
+    /**
+     * local queues by lock name. one entry per lock name used in this process
+     */
+    private static final ConcurrentMap<String, LocalQueue> QUEUES = new ConcurrentHashMap<>();
+
+    private final String lockName;
+    private final int fairnessBudget;
+    private final LocalQueue queue;
+
+    public HierarchicalLock(String lockName) {
+        this(lockName, DEFAULT_FAIRNESS_BUDGET);
+    }
+
+    /**
+     * @param lockName name of the lock
+     * @param fairnessBudget how many times in a row the lock can be passed between local threads
+     */
+    public HierarchicalLock(String lockName, int fairnessBudget) {
+        this.lockName = lockName;
+        this.fairnessBudget = fairnessBudget;
+        this.queue = QUEUES.computeIfAbsent(lockName, name -> new LocalQueue());
+    }
+
+    /**
+     * block until the lock is gained
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     * @throws Throwable why the lock cannot be gained
+     */
+    public void lock() throws Throwable {
+        try {
+            queue.local.lockInterruptibly();
+        } catch (InterruptedException e) {
+            // the lock may have been handed over to this thread
+            releaseIfAbandoned();
+            throw e;
+        }
+        if(queue.local.getHoldCount() > 1 || queue.distributed != null){
+            // nested, or handed over by the previous local holder
+            return;
+        }
+        Lock distributed = new Lock(lockName);
+        try {
+            distributed.lock();
+        } catch (Throwable throwable) {
+            queue.local.unlock();
+            throw throwable;
+        }
+        queue.distributed = distributed;
+        queue.handoffs = 0;
+    }
+
+    /**
+     * release the lock. pass it to the next local thread if any and the budget allows
+     * @throws IllegalMonitorStateException if the current thread does not hold this lock
+     */
+    public void unlock() {
+        boolean handOver = false;
+        if(queue.local.getHoldCount() == 1){
+            if(queue.local.hasQueuedThreads() && ++queue.handoffs < fairnessBudget){
+                logger.debug("hand over {} to next local thread", lockName);
+                handOver = true;
+            }else{
+                queue.distributed.unlock();
+                queue.distributed = null;
+            }
+        }
+        queue.local.unlock();
+        if(handOver){
+            // the waiter may have left meanwhile
+            releaseIfAbandoned();
+        }
+    }
+
+    /**
+     * a waiter handed the lock over may leave the local queue instead of taking it, leaving the lock in zookeeper
+     * held for nobody. release it then, unless another local thread still waits for it.
+     * called by the thread handing over after it unlocks, and by a waiter when it leaves, so the last one sees it
+     */
+    private void releaseIfAbandoned() {
+        if(!queue.local.tryLock()){
+            // taken by a local thread, which releases it in turn
+            return;
+        }
+        try {
+            if(queue.local.getHoldCount() == 1 && queue.distributed != null && !queue.local.hasQueuedThreads()){
+                logger.debug("{} handed over to nobody, releasing", lockName);
+                queue.distributed.unlock();
+                queue.distributed = null;
+            }
+        } finally {
+            queue.local.unlock();
+        }
+    }
+
+    /**
+     * the local queue of one lock name.
+     * distributed and handoffs are only touched by the holder of local
+     */
+    private static class LocalQueue {
+        private final ReentrantLock local = new ReentrantLock(true);
+        /**
+         * the lock in zookeeper held for this process, null if not held
+         */
+        private Lock distributed;
+        /**
+         * local hand-offs since the lock is gained from zookeeper
+         */
+        private int handoffs;
+    }
+}
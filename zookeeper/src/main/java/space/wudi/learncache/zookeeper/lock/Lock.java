@@ -5,115 +5,517 @@ import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import space.wudi.learncache.zookeeper.util.CallbackDispatcher;
+import space.wudi.learncache.zookeeper.util.EnsurePath;
+import space.wudi.learncache.zookeeper.util.Futures;
 import space.wudi.learncache.zookeeper.util.ZooKeeperResult;
-import space.wudi.learncache.zookeeper.util.ZooKeeperResultHolder;
 import space.wudi.learncache.zookeeper.util.ZooKeeperSession;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
+/**
+ * a fair distributed lock.
+ * one Lock object holds the lock at most once at a time.
+ * nodes are ordered by serial number, so they can be mixed with the readers of a {@link ReadWriteLock}.
+ * each hold comes with a {@link FencingToken} to guard the writes done under it.
+ * <br/>
+ * Requests failed by connection loss are sent again after a backoff. A waiter whose session expires
+ * is queued again at the end with a new session, or fails if no session can be made
+ */
 public class Lock {
     private static final Logger logger = LoggerFactory.getLogger(Lock.class);
-    private static final String ROOT = "/locks";
+    static final String ROOT = "/locks";
+    /**
+     * node of a shared holder is named like "{lockName}-read-{id}-{serialNumber}"
+     */
+    static final String SHARED_MARK = "-read-";
+    /**
+     * length of the serial number zookeeper appends to a sequential node
+     */
+    private static final int SEQUENCE_LENGTH = 10;
+    /**
+     * order lock nodes by serial number, whatever their prefix
+     */
+    static final Comparator<String> SEQUENCE_ORDER = Comparator.comparing(Lock::sequenceOf);
+    /**
+     * data a holder writes into its node once it gains the lock.
+     * tells the waiter behind that the node goes away in order
+     */
+    private static final byte[] GRANTED = {1};
+    /**
+     * directories of lock names known to exist
+     */
+    static final EnsurePath PARENTS = EnsurePath.of(ROOT);
 
     private String lockName;
-    private String realLockName;
-    private CountDownLatch cdl;
-    private ZooKeeper zk;
+    /**
+     * shared holders only wait for exclusive ones
+     */
+    private final boolean shared;
+    /**
+     * how many exclusive holders at the same time. 1 for a lock, more for a {@link Semaphore}
+     */
+    private final int permits;
+    private volatile String realLockName;
+    private volatile ZooKeeper zk;
+    private volatile FencingToken fencingToken;
+    /**
+     * {@link System#nanoTime()} when the lock was gained, 0 if not held
+     */
+    private volatile long grantedAt;
+    private final LockMetrics metrics;
+    private final CallbackDispatcher dispatcher = CallbackDispatcher.getDefault();
 
     public Lock(String lock){
+        this(lock, false);
+    }
+
+    /**
+     * @param lock name of the lock
+     * @param shared true to be held together with other shared holders, see {@link ReadWriteLock}
+     */
+    Lock(String lock, boolean shared){
+        this(lock, shared, 1);
+    }
+
+    /**
+     * @param lock name of the lock
+     * @param shared true to be held together with other shared holders, see {@link ReadWriteLock}
+     * @param permits how many exclusive holders at the same time, see {@link Semaphore}
+     */
+    Lock(String lock, boolean shared, int permits){
         this.lockName = lock;
-        this.cdl = new CountDownLatch(1);
+        this.shared = shared;
+        this.permits = permits;
+        this.metrics = LockMetrics.of(lock);
     }
 
-    public void lock() throws Throwable {
-        // lazy connect to server
-        zk = ZooKeeperSession.getZooKeeperClient(ROOT);
-        LockWatcherCallback lockWatcherCallback = new LockWatcherCallback(/*cdl*/);
-        ZooKeeperResult<String> result = lockWatcherCallback.getResult();
-        // create ephemeral sequential node
-        zk.create("/"+lockName+"/"+lockName, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL, lockWatcherCallback, lockName);
-        // block until countdown
-        cdl.await();
+    /**
+     * block until the lock is gained
+     * @return the fencing token of this hold
+     * @throws InterruptedException if the current thread is interrupted while waiting. the queued node is removed
+     * @throws Throwable why the lock cannot be gained
+     */
+    public FencingToken lock() throws Throwable {
+        return lockInterruptibly();
+    }
+
+    /**
+     * block until the lock is gained, or the current thread is interrupted
+     * @return the fencing token of this hold
+     * @throws InterruptedException if the current thread is interrupted while waiting. the queued node is removed
+     * @throws Throwable why the lock cannot be gained
+     */
+    public FencingToken lockInterruptibly() throws Throwable {
+        CompletableFuture<ZooKeeperResult<String>> future = lockAsync();
+        ZooKeeperResult<String> result;
+        try {
+            result = future.get();
+        } catch (InterruptedException e) {
+            if(!future.cancel(false)){
+                // gained at the same time. do not keep it
+                unlock();
+            }
+            throw e;
+        }
         if(result.getThrowable() != null){
             throw result.getThrowable();
         }
+        return fencingToken;
     }
 
-    public void unlock() {
-        if(zk == null || !zk.getState().isConnected()){
-            return;
+    /**
+     * wait at most timeout for the lock
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of the timeout argument
+     * @return true if the lock is gained, false if timeout. the queued node is removed when timeout
+     * @throws InterruptedException if the current thread is interrupted while waiting. the queued node is removed
+     * @throws Throwable why the lock cannot be gained
+     */
+    public boolean tryLock(long timeout, TimeUnit unit) throws Throwable {
+        CompletableFuture<ZooKeeperResult<String>> future = lockAsync();
+        ZooKeeperResult<String> result;
+        try {
+            result = future.get(timeout, unit);
+        } catch (TimeoutException e) {
+            if(future.cancel(false)){
+                return false;
+            }
+            // gained at the same time
+            result = future.join();
+        } catch (InterruptedException e) {
+            if(!future.cancel(false)){
+                unlock();
+            }
+            throw e;
         }
+        if(result.getThrowable() != null){
+            throw result.getThrowable();
+        }
+        return true;
+    }
+
+    /**
+     * start to gain the lock without blocking. no thread is parked while waiting.
+     * cancel the future to give up waiting, the queued node is removed at once
+     * @return a future completes when the lock is gained, with the real lock node as data
+     *          and its stat (null if created together with the directory of the lock name).
+     *          or with the throwable why it cannot be gained.
+     *          completed out of the dispatcher, so its dependents may block on other calls, like {@link #unlock()}
+     */
+    public CompletableFuture<ZooKeeperResult<String>> lockAsync() {
+        LockWatcherCallback lockWatcherCallback = new LockWatcherCallback();
+        // lazy connect to server. the session is shared, callbacks run on the dispatcher
+        lockWatcherCallback.connect();
+        return lockWatcherCallback.future;
+    }
+
+    /**
+     * wait for the lock with a node created by someone else, see {@link MultiLock}
+     * @param zk the session the node is created by. borrowed for this lock, and given back when released
+     * @param node the created node
+     * @return like {@link #lockAsync()}
+     */
+    CompletableFuture<ZooKeeperResult<String>> lockAsync(ZooKeeper zk, String node) {
+        LockWatcherCallback lockWatcherCallback = new LockWatcherCallback(zk);
+        lockWatcherCallback.processResult(Code.OK.intValue(), node, lockName, node, null);
+        return lockWatcherCallback.future;
+    }
+
+    /**
+     * @param id random id of one acquisition
+     * @return the node to create, with the id to find it after connection loss. zookeeper appends the serial number
+     */
+    String nodePrefix(String id) {
+        return "/"+lockName+"/"+lockName+(shared ? SHARED_MARK : "-")+id+"-";
+    }
+
+    /**
+     * @return the fencing token of the current hold, null if the lock is not held
+     */
+    public FencingToken getFencingToken() {
+        return fencingToken;
+    }
+
+    /**
+     * release the lock and wait until released. nothing happens if the lock is not held
+     */
+    public void unlock() {
         try {
-            zk.delete(realLockName, -1);
-        } catch (KeeperException.NoNodeException ignore) {
-        } catch (Exception e){
+            ZooKeeperResult<String> result = Futures.await(unlockAsync());
+            if(result.getThrowable() != null){
+                logger.error("exception while unlock {}: {} ", result.getData(), result.getThrowable());
+            }
+        } catch (IOException e) {
             logger.error("exception while unlock {}: {} ", realLockName, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * release the lock without blocking
+     * @return a future completes when the lock node is deleted, with the real lock node as data.
+     *          completed out of the dispatcher, so its dependents may block on other calls
+     */
+    public CompletableFuture<ZooKeeperResult<String>> unlockAsync() {
+        ZooKeeper zk = this.zk;
+        String realLockName = this.realLockName;
+        long grantedAt = this.grantedAt;
+        if(grantedAt != 0){
+            metrics.unlocked(grantedAt, System.nanoTime());
         }
-        logger.info("unlock {} finished", realLockName);
+        this.grantedAt = 0;
+        this.zk = null;
+        this.realLockName = null;
+        this.fencingToken = null;
+        if(zk == null){
+            return CompletableFuture.completedFuture(ZooKeeperResult.of(Code.OK, null, null));
+        }
+        if(realLockName == null || !zk.getState().isAlive()){
+            // the ephemeral node goes away with the session anyway
+            ZooKeeperSession.releaseZooKeeperClient(zk);
+            return CompletableFuture.completedFuture(ZooKeeperResult.of(Code.OK, realLockName, null));
+        }
+        CompletableFuture<ZooKeeperResult<String>> future = new CompletableFuture<>();
+        delete(zk, realLockName, 0, code -> dispatcher.dispatch("/" + lockName, () -> {
+            // give back the shared session
+            ZooKeeperSession.releaseZooKeeperClient(zk);
+            switch(code){
+                case OK:
+                case NONODE:
+                case SESSIONEXPIRED:
+                    logger.info("unlock {} finished", realLockName);
+                    Futures.completeAsync(future, ZooKeeperResult.of(Code.OK, realLockName, null));
+                    break;
+                default:
+                    Futures.completeAsync(future, ZooKeeperResult.failure(code, KeeperException.create(code, realLockName)));
+            }
+        }));
+        return future;
+    }
+
+    /**
+     * delete a lock node. sent again after connection loss, as long as the session lives.
+     * a disconnected session keeps its ephemeral nodes, which block the others if not deleted
+     * @param zk the session the node belongs to
+     * @param node the node to delete
+     * @param attempt how many times failed by connection loss
+     * @param done called in the event thread with the result code
+     */
+    static void delete(ZooKeeper zk, String node, int attempt, Consumer<Code> done) {
+        zk.delete(node, -1, (rc, path, ctx) -> {
+            Code code = Code.get(rc);
+            if(code == Code.CONNECTIONLOSS){
+                ZooKeeperSession.retryLater(attempt, () -> delete(zk, node, attempt + 1, done));
+                return;
+            }
+            done.accept(code);
+        }, null);
     }
 
-    private class LockWatcherCallback extends ZooKeeperResultHolder<String> implements AsyncCallback.StringCallback, Watcher, AsyncCallback.StatCallback {
+    /**
+     * @return random id of 16 hex digits, put in the name of a node to find it if the create result is lost
+     */
+    static String newId() {
+        return String.format("%016x", ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * tell if a node is created with the id. the id is compared whole, never as a part of another id or of the serial number
+     * @param node name of a lock node, without the directory
+     * @param id id from {@link #newId()}
+     * @return the node is named with the id
+     */
+    static boolean isCreatedBy(String node, String id) {
+        return node.length() > SEQUENCE_LENGTH && node.endsWith("-" + id + "-" + sequenceOf(node));
+    }
+
+    /**
+     * tell readers from writers by what follows the lock name, which may contain the mark itself
+     * @param lockName name of the lock
+     * @param node name of a lock node of lockName, without the directory
+     * @return whether the node is of a shared holder
+     */
+    static boolean isShared(String lockName, String node) {
+        return node.startsWith(SHARED_MARK, lockName.length());
+    }
+
+    /**
+     * @param node name of a lock node
+     * @return the serial number part, zero padded so it compares as a string
+     */
+    static String sequenceOf(String node) {
+        return node.substring(node.length() - SEQUENCE_LENGTH);
+    }
+
+    /**
+     * callbacks and watcher of one acquisition.
+     * <br/>
+     * Children are listed once when the node is created. The nodes before this one are kept as a sorted view,
+     * and only the one to wait for is watched. A holder marks its node with {@link #GRANTED}, so when the
+     * watched exclusive node is deleted after being marked, every node before it is gone as well and the
+     * lock belongs to this node with no more request. Children are listed again only when the watched node
+     * goes away without holding the lock (cancelled, or its session expired), or when it is a reader.
+     * With more than one permit a waiter watches the node right before it, and lists again when it is marked or gone.
+     * The first waiter, with exactly permits nodes before it, watches all of them instead, since a permit is freed
+     * by any of them leaving in whatever order. So a handoff tells one or two waiters, never all of them.
+     */
+    private class LockWatcherCallback implements AsyncCallback.Create2Callback, Watcher, AsyncCallback.StatCallback, AsyncCallback.Children2Callback, AsyncCallback.DataCallback {
+
+        /**
+         * completes when the lock is gained or cannot be gained
+         */
+        private final CompletableFuture<ZooKeeperResult<String>> future = new CompletableFuture<>();
+        /**
+         * session of this acquisition. replaced when it expires while waiting
+         */
+        private ZooKeeper zk;
+        /**
+         * random id in the name of the node to create, to find it if the create result is lost
+         */
+        private String id = newId();
+        /**
+         * the node created for this acquisition, format like "/{lockName}/{lockName}-{id}-{serialNumber}",
+         * or "/{lockName}/{lockName}-read-{id}-{serialNumber}" for a shared holder
+         */
+        private String node;
+        /**
+         * stat of the created node
+         */
+        private Stat nodeStat;
+        /**
+         * nodes before this one, sorted by serial number. from the last listing
+         */
+        private List<String> ahead = Collections.emptyList();
+        /**
+         * czxid of the lock directory holding the node. from the last listing
+         */
+        private long directoryEpoch;
+        /**
+         * the node waiting for, null if not waiting
+         */
+        private String watched;
+        /**
+         * the watched node holds the lock
+         */
+        private boolean watchedGranted;
+        /**
+         * a create request of the node is on the way
+         */
+        private boolean creating = true;
+        /**
+         * the node is deleted and the session is given back
+         */
+        private boolean released;
+        /**
+         * the lock is gained by this acquisition
+         */
+        private boolean granted;
+        /**
+         * granted or given up. the future may not be completed yet, it is completed out of the dispatcher
+         */
+        private boolean finished;
+        /**
+         * requests failed by connection loss in a row
+         */
+        private int retries;
+        /**
+         * told by the session pool when the session expires
+         */
+        private final Consumer<ZooKeeper> onExpired = expired -> dispatcher.dispatch(dispatchKey(), () -> requeue(expired));
+        /**
+         * {@link System#nanoTime()} when this acquisition started
+         */
+        private final long startedAt = System.nanoTime();
+        /**
+         * when this acquisition started to wait for another node, 0 if not yet
+         */
+        private long waitingSince;
+        /**
+         * when the node waited for is noticed gone, 0 if not yet
+         */
+        private long goneAt;
+
+        /**
+         * with no session yet, see {@link #connect()}
+         */
+        LockWatcherCallback() {
+            // give up waiting at once when cancelled
+            future.whenComplete((result, throwable) -> {
+                if(future.isCancelled()){
+                    metrics.failureCancelled.increment();
+                    dispatcher.dispatch(dispatchKey(), this::release);
+                }
+            });
+        }
+
+        LockWatcherCallback(ZooKeeper zk) {
+            this();
+            this.zk = zk;
+            watchSession();
+        }
+
+        /**
+         * borrow a session without blocking, then create the node.
+         * the session may take a while to connect. wait for it off the dispatcher,
+         * and hold a release back meanwhile like while creating
+         */
+        void connect() {
+            ZooKeeperSession.getZooKeeperClientAsync(ROOT).whenComplete((session, throwable) ->
+                    dispatcher.dispatch(dispatchKey(), () -> onConnected(session, throwable)));
+        }
+
+        /**
+         * @param session the borrowed session, null if failed
+         * @param throwable why no session can be made, null if succeeded
+         */
+        private void onConnected(ZooKeeper session, Throwable throwable) {
+            creating = false;
+            if(throwable != null){
+                released = true;
+                giveUp(null, Futures.unwrap(throwable));
+                return;
+            }
+            zk = session;
+            if(isFinished()){
+                // cancelled meanwhile
+                released = true;
+                ZooKeeperSession.releaseZooKeeperClient(session);
+                return;
+            }
+            watchSession();
+            create();
+        }
 
-//        private CountDownLatch cdl;
+        /**
+         * create ephemeral sequential node. the directory of a new lock name is created in the same request
+         */
+        void create() {
+            creating = true;
+            PARENTS.create(zk, nodePrefix(id), null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL, this, lockName);
+        }
 
-        LockWatcherCallback(/*CountDownLatch cdl*/) {
-//            this.cdl = cdl;
+        /**
+         * the create request may have made the node or not when its result is lost.
+         * list the children to find the node by its id
+         */
+        private void findCreated() {
+            zk.getChildren("/"+lockName, false, this, lockName);
         }
 
         /**
          * create callback
          */
         @Override
-        public void processResult(int rc, String path, Object lockName, String name) {
+        public void processResult(int rc, String path, Object lockName, String name, Stat stat) {
+            // leave the event thread at once
+            dispatcher.dispatch(dispatchKey(), () -> onCreated(rc, path, lockName, name, stat));
+        }
+
+        private void onCreated(int rc, String path, Object lockName, String name, Stat stat) {
             Code code = Code.get(rc);
-            result.setCode(code);
+            switch(code){
+                case CONNECTIONLOSS:
+                    // still creating until known if the node is made
+                    metrics.retryConnectionLoss.increment();
+                    retry(this::findCreated);
+                    return;
+                case SESSIONEXPIRED:
+                    // the node is gone with the session if made. queued again with a new session
+                    return;
+                default:
+            }
+            creating = false;
             switch(code){
                 case OK:
                     // node create success
-                    // store the real node name, format like "/path/{lockName}{serialNumber}"
-                    realLockName = name;
-                    try {
-                        // check if node the first (gain the lock) or behind (block and watch first)
-                        gainLockOrStartWatcher((String)lockName);
-                    } catch (InterruptedException | IOException e) {
-                        result.setThrowable(e);
-                        cdl.countDown();
-                    }
-                    break;
-                case NONODE:
-                    // create failed. probably parent node not exists.
-                    try {
-                        // recursively create parent node
-                        waitAndCreateParentNode(path);
-                        if(result.getData() == null){
-                            // create failed
-                            if(result.getThrowable() == null){
-                                result.setThrowable(new RuntimeException("failed to create parent node for lock "+lockName));
-                            }
-                        }else{
-                            // create parent success
-                            logger.info("creating lock node {}...", lockName);
-                            // recreate lock node
-                            zk.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL, this, lockName);
-                        }
-                    } catch (IOException | InterruptedException e) {
-                        logger.warn("get zk session failed while create parent node: {}:{}", e.getClass(), e.getMessage());
-                        result.setData(null);
-                        result.setStat(null);
-                        result.setThrowable(e);
+                    retries = 0;
+                    // store the real node name, format like "/{lockName}/{lockName}-{id}-{serialNumber}"
+                    node = name;
+                    nodeStat = stat;
+                    if(isFinished()){
+                        // cancelled while creating
+                        release();
+                        break;
                     }
+                    // check if node the first (gain the lock) or behind (block and watch first)
+                    gainLockOrStartWatcher((String)lockName);
                     break;
                 default:
                     // otherwise unexpected things happened. release the block
                     logger.warn("unexpected code when create node {}: {}", path, code);
-                    result.setData(null);
-                    result.setStat(null);
-                    result.setThrowable(new RuntimeException("unexpected code when create node " + path+": "+ code));
-                    cdl.countDown();
+                    fail(code, new RuntimeException("unexpected code when create node " + path+": "+ code));
             }
         }
 
@@ -123,167 +525,463 @@ public class Lock {
          * <br/>
          * It is an implement of fair lock
          */
-        private void gainLockOrStartWatcher(String lockName) throws InterruptedException, IOException {
-            CountDownLatch cdlForGetChildren = new CountDownLatch(1);
-            List<String> children = new ArrayList<>();
-            logger.info("getting children of /", lockName);
-            // do not use field zk to getChildren. one connection can only be blocked once!!!
-            ZooKeeperSession.getZooKeeperClient(ROOT).getChildren("/"+lockName, false, (int rc, String path, Object ctx, List<String> childNodes)->{
-                if(Code.get(rc) == Code.OK){
-                    children.addAll(childNodes);
-                }
-                cdlForGetChildren.countDown();
-            }, null);
-            // wait until getChildren returned
-            cdlForGetChildren.await();
-            logger.info("children of /{}: {}",lockName, children);
-            // sort children node names.
-            Collections.sort(children);
+        private void gainLockOrStartWatcher(String lockName) {
+            logger.info("getting children of /{}", lockName);
+            zk.getChildren("/"+lockName, false, this, lockName);
+        }
 
+        /**
+         * callback method for getChildren in {@link #gainLockOrStartWatcher}
+         */
+        @Override
+        public void processResult(int rc, String path, Object lockName, List<String> childNodes, Stat stat) {
+            dispatcher.dispatch(dispatchKey(), () -> onChildren(rc, path, lockName, childNodes, stat));
+        }
+
+        private void onChildren(int rc, String path, Object lockName, List<String> childNodes, Stat stat) {
+            Code code = Code.get(rc);
+            if(node == null){
+                onCreationChecked(code, path, childNodes);
+                return;
+            }
+            if(isFinished()){
+                // cancelled. the node is already removed
+                return;
+            }
+            if(code == Code.CONNECTIONLOSS){
+                metrics.retryConnectionLoss.increment();
+                retry(() -> gainLockOrStartWatcher(Lock.this.lockName));
+                return;
+            }
+            if(code == Code.SESSIONEXPIRED){
+                return;
+            }
+            if(code != Code.OK){
+                logger.warn("unexpected code when get children of {}: {}", path, code);
+                fail(code, new RuntimeException("unexpected code when get children of " + path + ": " + code));
+                return;
+            }
+            retries = 0;
             // List<String> children only contains pure node name,
             // path not included, '/' also not included
             // so findStr should only be a substring from the last '/'
-            String findStr = realLockName.replace("/"+lockName+"/", "");
-            int order = children.indexOf(findStr);
-            logger.info("gain node {} at the order of {}", findStr, order);
-            if(order == 0){
-                // if this node is the first
+            metrics.queueDepth(childNodes.size());
+            String findStr = node.substring(node.lastIndexOf('/') + 1);
+            String sequence = sequenceOf(findStr);
+            // only keep the nodes before this one. nodes after never matter
+            List<String> ahead = new ArrayList<>();
+            boolean found = false;
+            for (String child : childNodes) {
+                int compare = sequenceOf(child).compareTo(sequence);
+                if(compare < 0){
+                    ahead.add(child);
+                }else if(compare == 0){
+                    found = true;
+                }
+            }
+            if(!found){
+                // own node is gone. probably the session expired
+                metrics.failureNodeLost.increment();
+                giveUp(Code.NONODE, new RuntimeException("lock node " + node + " disappeared while waiting"));
+                return;
+            }
+            ahead.sort(SEQUENCE_ORDER);
+            this.ahead = ahead;
+            // the node is in the listing, so the stat is of the directory it was created in
+            directoryEpoch = stat.getCzxid();
+            logger.info("gain node {} at the order of {}", findStr, ahead.size());
+            waitForPrevious();
+        }
+
+        /**
+         * children listed after the result of creating the node is lost
+         */
+        private void onCreationChecked(Code code, String path, List<String> childNodes) {
+            switch(code){
+                case OK:
+                    for (String child : childNodes) {
+                        if(isCreatedBy(child, id)){
+                            logger.info("found {} created before connection loss", child);
+                            onCreated(Code.OK.intValue(), nodePrefix(id), lockName, path + "/" + child, null);
+                            return;
+                        }
+                    }
+                    // fall through, not created
+                case NONODE:
+                    if(isFinished()){
+                        creating = false;
+                        release();
+                    }else{
+                        create();
+                    }
+                    break;
+                case CONNECTIONLOSS:
+                    metrics.retryConnectionLoss.increment();
+                    retry(this::findCreated);
+                    break;
+                case SESSIONEXPIRED:
+                    break;
+                default:
+                    creating = false;
+                    fail(code, new RuntimeException("unexpected code when get children of " + path + ": " + code));
+            }
+        }
+
+        /**
+         * gain the lock if nothing ahead to wait for, or watch the node to wait for
+         */
+        private void waitForPrevious() {
+            watched = previousToWait();
+            watchedGranted = false;
+            if(watched == null){
+                // if nothing to wait for
                 // lock belongs
-                result.setData(realLockName);
-                result.setStat(null);
-                result.setThrowable(null);
-                cdl.countDown();
+                grant();
+            }else if(permits > 1 && ahead.size() == permits){
+                // the first waiter. any holder leaving frees a permit for this node
+                if(waitingSince == 0){
+                    waitingSince = System.nanoTime();
+                }
+                for (String holder : ahead) {
+                    zk.exists("/"+lockName+"/"+holder, this, this, node);
+                }
+            }else{
+                // else, should watch the previous child node.
+                // getData to know if it holds the lock, and to be told when it does
+                if(waitingSince == 0){
+                    waitingSince = System.nanoTime();
+                }
+                zk.getData("/"+lockName+"/"+watched, this, this, node);
+            }
+        }
+
+        /**
+         * the lock belongs to this node. mark the node for the one waiting behind
+         */
+        private void grant() {
+            long now = System.nanoTime();
+            granted = true;
+            // a holder whose session expires has lost the lock, nothing to queue again
+            ZooKeeperSession.removeExpiryListener(zk, onExpired);
+            grantedAt = now;
+            Lock.this.zk = zk;
+            realLockName = node;
+            fencingToken = new FencingToken(directoryEpoch, Long.parseLong(sequenceOf(node)));
+            finished = true;
+            String gained = node;
+            Futures.completeAsync(future, ZooKeeperResult.of(Code.OK, node, nodeStat)).thenAccept(completed -> {
+                if(!completed){
+                    // cancelled at the same time
+                    dispatcher.dispatch(dispatchKey(), () -> ungrant(gained));
+                }
+            });
+            metrics.granted(startedAt, waitingSince, goneAt, now);
+            zk.setData(node, GRANTED, -1, (rc, path, ctx, stat) -> {
+                if(Code.get(rc) != Code.OK && Code.get(rc) != Code.NONODE){
+                    logger.warn("cannot mark {} as granted: {}", path, Code.get(rc));
+                }
+            }, null);
+        }
+
+        /**
+         * the future is cancelled after the lock is gained. do not keep it
+         * @param gained the node gained the lock
+         */
+        private void ungrant(String gained) {
+            if(gained.equals(realLockName)){
+                Lock.this.zk = null;
+                realLockName = null;
+                fencingToken = null;
+                grantedAt = 0;
+            }
+            release();
+        }
+
+        /**
+         * an exclusive holder waits for the node right before it. with more permits the first waiter waits for all nodes before.
+         * a shared holder waits for the nearest exclusive node before it
+         * @return the node to wait for, null if the lock belongs to this node
+         */
+        private String previousToWait() {
+            if(!shared){
+                return ahead.size() < permits ? null : ahead.get(ahead.size() - 1);
+            }
+            for (int i = ahead.size() - 1; i >= 0; i--) {
+                if(!isShared(lockName, ahead.get(i))){
+                    return ahead.get(i);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * the watched node is deleted
+         */
+        private void onPreviousGone() {
+            goneAt = System.nanoTime();
+            if(permits > 1){
+                // a permit may be freed. list again to count the nodes before
+                gainLockOrStartWatcher(lockName);
+            }else if(watchedGranted && !isShared(lockName, watched)){
+                // it held the lock exclusively, so everything before it is gone.
+                // nothing in between can block this node
+                logger.info("{} released in order, {} gains the lock", watched, node);
+                ahead = Collections.emptyList();
+                watched = null;
+                grant();
             }else{
-                // else, should watch the previous child node
-                zk.exists("/"+lockName+"/"+children.get(order-1), this, this, realLockName);
+                // gone out of order. other nodes before may still exist
+                metrics.retryOutOfOrder.increment();
+                gainLockOrStartWatcher(lockName);
             }
         }
 
         /**
-         * recursively create parent node of path synchronously
-         * remember to check the this.result to ensure create successfully
-         * NOTE: A better way to perform is to add a new CreateParentResult object into
-         *      param list (like "<code>void waitAndCreateParentNode(String path, CreateParentResult result)</code>").
-         *      When recurse inside, use the same CreateParentResult object.
-         *      In this way, result of waitAndCreateParentNode would not pollute <code>this.result</code>
+         * callback method for getData in {@link #waitForPrevious}
          */
-        private void waitAndCreateParentNode(String path) throws IOException, InterruptedException {
-            logger.info("parent of node {} not exists while locking {}", path, lockName);
-            // get parent path. in other word, remove the last '/'
-            String parentPath = path.substring(0, path.lastIndexOf("/"));
-            if(parentPath.length()<1){
-                // if parentPath.length < 1, the root of this zk is not exists.
-                // this zk cannot create the grandparent any more
-                result.setData(null);
-                result.setStat(null);
-                result.setThrowable(new RuntimeException("parent node create failed. Root Node "+ROOT+" not exists."));
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            dispatcher.dispatch(dispatchKey(), () -> onPreviousData(rc, path, data));
+        }
+
+        private void onPreviousData(int rc, String path, byte[] data) {
+            if(isFinished()){
                 return;
             }
-            // start a new zk to create parent synchronously.
-            // NOTE: we cannot use another thread blocker to synchronize same zk in callback,
-            //       so we should create another ZooKeeper Client
-            CountDownLatch cdlForCreateParent = new CountDownLatch(1);
-            ZooKeeperSession.getZooKeeperClient(ROOT).create(
-                    parentPath,
-                    null,
-                    ZooDefs.Ids.OPEN_ACL_UNSAFE,
-                    CreateMode.PERSISTENT,
-                    (rc1, path1, context, name1) -> {
-                        CountDownLatch createParentCdl = (CountDownLatch)context;
-                        Code code1 = Code.get(rc1);
-                        result.setCode(code1);
-                        switch(code1){
-                            case OK:
-                                // create parent success
-                                logger.info("parent node {} created for lock {}", path1, lockName);
-                                result.setData(name1);
-                                createParentCdl.countDown();    // release the block
-                                break;
-                            case NONODE:
-                                // parent of the parent is not exists, recursively call.
-                                try {
-                                    waitAndCreateParentNode(path1);
-                                } catch (IOException | InterruptedException e) {
-                                    e.printStackTrace();
-                                    result.setData(null);
-                                    result.setStat(null);
-                                    result.setThrowable(e);
-                                }
-                                createParentCdl.countDown();
-                                break;
-                            case NODEEXISTS:
-                                // surprise! non-existent parent node exists now.
-                                // probably another thread/client created it just now
-                                // pretend I create it
-                                logger.info("parent node {} already exists for lock {}", path1, lockName);
-                                result.setData(path1);
-                                result.setStat(null);
-                                result.setThrowable(null);
-                                createParentCdl.countDown();    // release the block
-                                break;
-                            default:
-                                logger.warn("parent node {} create failed for lock {} with code {}", path1, lockName, code1);
-                                result.setData(null);
-                                result.setStat(null);
-                                result.setThrowable(new RuntimeException("parent node "+path1+" create failed for lock "+lockName+" with code"+code1));
-                                createParentCdl.countDown();
-                        }
-                    },
-                    cdlForCreateParent);
-            // block and wait until parent created or cannot create anymore
-            cdlForCreateParent.await();
+            Code code = Code.get(rc);
+            switch(code){
+                case OK:
+                    // previous node still exists. the watcher is set
+                    retries = 0;
+                    watchedGranted = Arrays.equals(GRANTED, data);
+                    if(permits > 1 && watchedGranted){
+                        // the node before holds a permit already. this node may be the first waiter
+                        gainLockOrStartWatcher(lockName);
+                        break;
+                    }
+                    logger.info("waiting for {} releasing", path);
+                    break;
+                case NONODE:
+                    // gone before watching. cannot tell if it held the lock
+                    goneAt = System.nanoTime();
+                    metrics.retryGoneBeforeWatch.increment();
+                    gainLockOrStartWatcher(lockName);
+                    break;
+                case CONNECTIONLOSS:
+                    // not known if watched. list again when connected
+                    metrics.retryConnectionLoss.increment();
+                    retry(() -> gainLockOrStartWatcher(lockName));
+                    break;
+                case SESSIONEXPIRED:
+                    break;
+                default:
+                    fail(code, new RuntimeException("unexpected return code when get data "+code));
+            }
         }
 
         /**
-         * callback method for exists in {@link #gainLockOrStartWatcher}
+         * callback method for exists in {@link #onWatchedEvent}
          */
         @Override
         public void processResult(int rc, String path, Object ctx, Stat stat) {
+            dispatcher.dispatch(dispatchKey(), () -> onExists(rc, path, stat));
+        }
+
+        private void onExists(int rc, String path, Stat stat) {
+            if(isFinished()){
+                return;
+            }
             Code code = Code.get(rc);
-            result.setCode(code);
             switch(code){
                 case NONODE:
                     // previous node become not exist.
                     // probably had been delete just now
-                    // directly gain the lock
-                    try {
-                        gainLockOrStartWatcher(lockName);
-                    } catch (InterruptedException | IOException e) {
-                        e.printStackTrace();
-                        cdl.countDown();
-                    }
+                    onPreviousGone();
                     break;
                 case OK:
                     // previous node still exists. do nothing.
                     // this operation is to set a watcher
+                    retries = 0;
                     logger.info("waiting for {} releasing", path);
                     break;
+                case CONNECTIONLOSS:
+                    metrics.retryConnectionLoss.increment();
+                    retry(() -> gainLockOrStartWatcher(lockName));
+                    break;
+                case SESSIONEXPIRED:
+                    break;
                 default:
-                    result.setData(null);
-                    result.setStat(null);
-                    result.setThrowable(new RuntimeException("unexpected return code when exists "+code));
-                    cdl.countDown();
+                    fail(code, new RuntimeException("unexpected return code when exists "+code));
             }
         }
 
         /**
-         * watcher event for previous node. set in {@link #gainLockOrStartWatcher}
+         * watcher event for previous node. set in {@link #waitForPrevious}
          */
         @Override
         public void process(WatchedEvent event) {
+            dispatcher.dispatch(dispatchKey(), () -> onWatchedEvent(event));
+        }
+
+        private void onWatchedEvent(WatchedEvent event) {
+            if(isFinished()){
+                return;
+            }
             switch (event.getType()){
-                case NodeDeleted:
-                    // when previous node being deleted
-                    try {
-                        // gain the lock
+                case NodeDataChanged:
+                    if(permits > 1 && ahead.size() > permits){
+                        // the node before gains a permit. this node may be the first waiter now
                         gainLockOrStartWatcher(lockName);
-                    } catch (InterruptedException | IOException e) {
-                        e.printStackTrace();
-                        cdl.countDown();
+                        break;
                     }
+                    // previous node gains the lock. watch again to be told when it is deleted
+                    watchedGranted = true;
+                    zk.exists(event.getPath(), this, this, node);
+                    break;
+                case NodeDeleted:
+                    // when previous node being deleted
+                    onPreviousGone();
+                    break;
                 default:
                     logger.info("state of previous lock {} changes to {}", event.getPath(), event.getType());
             }
         }
+
+        /**
+         * callbacks of the same lock run in order
+         */
+        private String dispatchKey() {
+            return "/" + lockName;
+        }
+
+        /**
+         * be told if the session expires, at once if it has expired already
+         */
+        private void watchSession() {
+            ZooKeeperSession.addExpiryListener(zk, onExpired);
+            if(!zk.getState().isAlive()){
+                onExpired.accept(zk);
+            }
+        }
+
+        /**
+         * send a request failed by connection loss again, after a backoff growing with the failures in a row.
+         * dropped if the session is replaced meanwhile
+         * @param request the request to send again
+         */
+        private void retry(Runnable request) {
+            int attempt = retries++;
+            ZooKeeper session = zk;
+            logger.info("connection lost while waiting for {}, retry {}", lockName, attempt + 1);
+            ZooKeeperSession.retryLater(attempt, () -> dispatcher.dispatch(dispatchKey(), () -> {
+                if(zk == session && !released){
+                    request.run();
+                }
+            }));
+        }
+
+        /**
+         * the session expired with the node and the watch. queue again at the end with a new session.
+         * fail if no session can be made
+         * @param expired the expired session
+         */
+        private void requeue(ZooKeeper expired) {
+            if(expired != zk || released || granted){
+                return;
+            }
+            ZooKeeperSession.removeExpiryListener(expired, onExpired);
+            ZooKeeperSession.releaseZooKeeperClient(expired);
+            zk = null;
+            node = null;
+            creating = false;
+            if(isFinished()){
+                // cancelled or failed meanwhile. the node is gone already
+                released = true;
+                return;
+            }
+            metrics.retrySessionExpired.increment();
+            // the new session may take a while to connect. wait for it off the dispatcher,
+            // and hold a release back meanwhile like while creating
+            creating = true;
+            ZooKeeperSession.getZooKeeperClientAsync(ROOT).whenComplete((session, throwable) ->
+                    dispatcher.dispatch(dispatchKey(), () -> requeue(session, throwable)));
+        }
+
+        /**
+         * queue again with the new session
+         * @param session the new session, null if failed
+         * @param throwable why no session can be made, null if succeeded
+         */
+        private void requeue(ZooKeeper session, Throwable throwable) {
+            creating = false;
+            if(throwable != null){
+                released = true;
+                giveUp(Code.SESSIONEXPIRED, new IOException("session expired while waiting for lock " + lockName + ", and cannot connect again", Futures.unwrap(throwable)));
+                return;
+            }
+            zk = session;
+            if(isFinished()){
+                // cancelled meanwhile
+                released = true;
+                ZooKeeperSession.releaseZooKeeperClient(session);
+                return;
+            }
+            logger.warn("session expired while waiting for lock {}, queueing again", lockName);
+            id = newId();
+            nodeStat = null;
+            ahead = Collections.emptyList();
+            watched = null;
+            watchedGranted = false;
+            retries = 0;
+            watchSession();
+            create();
+        }
+
+        /**
+         * stop waiting with the unexpected cause
+         */
+        private void fail(Code code, Throwable throwable) {
+            metrics.failureError.increment();
+            giveUp(code, throwable);
+        }
+
+        /**
+         * stop waiting with the cause
+         */
+        private void giveUp(Code code, Throwable throwable) {
+            if(isFinished()){
+                return;
+            }
+            finished = true;
+            release();
+            Futures.completeAsync(future, ZooKeeperResult.failure(code, throwable));
+        }
+
+        /**
+         * @return granted, given up or cancelled. nothing to wait for any more
+         */
+        private boolean isFinished() {
+            return finished || future.isDone();
+        }
+
+        /**
+         * the lock will never be held by this acquisition.
+         * remove the node if created so it does not block others, and give back the session.
+         * if the node is being created, wait for its callback to call again
+         */
+        private void release() {
+            if(creating || released){
+                return;
+            }
+            released = true;
+            ZooKeeper zk = this.zk;
+            ZooKeeperSession.removeExpiryListener(zk, onExpired);
+            if(node == null){
+                ZooKeeperSession.releaseZooKeeperClient(zk);
+                return;
+            }
+            logger.info("give up waiting for {}, removing {}", lockName, node);
+            delete(zk, node, 0, code -> ZooKeeperSession.releaseZooKeeperClient(zk));
+        }
     }
 }
@@ -0,0 +1,145 @@
+package space.wudi.learncache.zookeeper.lock;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * meters of one lock name, registered to {@link Metrics#globalRegistry}.
+ * with spring boot actuator the application registry is part of it, so they are exported with the others.
+ * <br/>
+ * Every meter is tagged with the lock name, so give locks a bounded set of names.
+ * <ul>
+ *     <li>zookeeper.lock.wait: from starting to gain the lock until gained</li>
+ *     <li>zookeeper.lock.hold: from gained until unlocked</li>
+ *     <li>zookeeper.lock.handoff: from the release of the previous holder until gained, for the ones that waited.
+ *     taken from the unlock if the previous holder is in this process, otherwise from the notification of its deletion</li>
+ *     <li>zookeeper.lock.queue: nodes in the lock directory at the last listing</li>
+ *     <li>zookeeper.lock.retries: children listed again, requests sent again or queued again, tagged by reason</li>
+ *     <li>zookeeper.lock.failures: acquisitions given up, tagged by reason</li>
+ * </ul>
+ * Meters are built once per name, recording a value allocates nothing.
+ */
+final class LockMetrics {
+    private static final ConcurrentMap<String, LockMetrics> METRICS = new ConcurrentHashMap<>();
+    private static final Duration MIN_EXPECTED = Duration.ofMillis(1);
+    private static final Duration MAX_EXPECTED = Duration.ofMinutes(1);
+
+    private final Timer wait;
+    private final Timer hold;
+    private final Timer handoff;
+    /**
+     * the watched node went away out of order
+     */
+    final Counter retryOutOfOrder;
+    /**
+     * the node to watch went away before the watch was set
+     */
+    final Counter retryGoneBeforeWatch;
+    /**
+     * a request failed by connection loss, sent again when connected
+     */
+    final Counter retryConnectionLoss;
+    /**
+     * the session expired while waiting, queued again with a new session
+     */
+    final Counter retrySessionExpired;
+    /**
+     * the own node disappeared while waiting, probably the session expired
+     */
+    final Counter failureNodeLost;
+    /**
+     * unexpected result code from zookeeper
+     */
+    final Counter failureError;
+    /**
+     * cancelled or timeout
+     */
+    final Counter failureCancelled;
+    private volatile int queueDepth;
+    /**
+     * {@link System#nanoTime()} of the last unlock of this name in this process
+     */
+    private volatile long lastUnlock;
+
+    private LockMetrics(String lockName) {
+        MeterRegistry registry = Metrics.globalRegistry;
+        wait = timer("zookeeper.lock.wait", "time waited to gain the lock", lockName, registry);
+        hold = timer("zookeeper.lock.hold", "time the lock was held", lockName, registry);
+        handoff = timer("zookeeper.lock.handoff", "time from the release of the previous holder until gained", lockName, registry);
+        retryOutOfOrder = counter("zookeeper.lock.retries", "out-of-order", lockName, registry);
+        retryGoneBeforeWatch = counter("zookeeper.lock.retries", "gone-before-watch", lockName, registry);
+        retryConnectionLoss = counter("zookeeper.lock.retries", "connection-loss", lockName, registry);
+        retrySessionExpired = counter("zookeeper.lock.retries", "session-expired", lockName, registry);
+        failureNodeLost = counter("zookeeper.lock.failures", "node-lost", lockName, registry);
+        failureError = counter("zookeeper.lock.failures", "error", lockName, registry);
+        failureCancelled = counter("zookeeper.lock.failures", "cancelled", lockName, registry);
+        Gauge.builder("zookeeper.lock.queue", this, metrics -> metrics.queueDepth)
+                .description("nodes in the lock directory at the last listing")
+                .tag("lock", lockName)
+                .register(registry);
+    }
+
+    /**
+     * @param lockName name of the lock
+     * @return meters of the name, created the first time
+     */
+    static LockMetrics of(String lockName) {
+        LockMetrics metrics = METRICS.get(lockName);
+        return metrics != null ? metrics : METRICS.computeIfAbsent(lockName, LockMetrics::new);
+    }
+
+    private static Timer timer(String name, String description, String lockName, MeterRegistry registry) {
+        return Timer.builder(name)
+                .description(description)
+                .tag("lock", lockName)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(MIN_EXPECTED)
+                .maximumExpectedValue(MAX_EXPECTED)
+                .register(registry);
+    }
+
+    private static Counter counter(String name, String reason, String lockName, MeterRegistry registry) {
+        return Counter.builder(name)
+                .tag("lock", lockName)
+                .tag("reason", reason)
+                .register(registry);
+    }
+
+    /**
+     * @param startedAt when the acquisition started
+     * @param waitingSince when the acquisition started to wait for another node, 0 if it never waited
+     * @param goneAt when the deletion of the last node waited for is noticed, 0 if never
+     * @param now when the lock is gained
+     */
+    void granted(long startedAt, long waitingSince, long goneAt, long now) {
+        wait.record(now - startedAt, TimeUnit.NANOSECONDS);
+        if(goneAt == 0){
+            return;
+        }
+        long unlocked = lastUnlock;
+        // a local unlock after this one started waiting is the earliest known moment of the release
+        long releasedAt = unlocked > waitingSince && unlocked < goneAt ? unlocked : goneAt;
+        handoff.record(now - releasedAt, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param grantedAt when the lock was gained
+     * @param now when it is unlocked
+     */
+    void unlocked(long grantedAt, long now) {
+        hold.record(now - grantedAt, TimeUnit.NANOSECONDS);
+        lastUnlock = now;
+    }
+
+    void queueDepth(int depth) {
+        queueDepth = depth;
+    }
+}
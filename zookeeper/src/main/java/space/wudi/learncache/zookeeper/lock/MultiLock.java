@@ -0,0 +1,422 @@
+package space.wudi.learncache.zookeeper.lock;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import space.wudi.learncache.zookeeper.util.CallbackDispatcher;
+import space.wudi.learncache.zookeeper.util.Futures;
+import space.wudi.learncache.zookeeper.util.ZooKeeperResult;
+import space.wudi.learncache.zookeeper.util.ZooKeeperSession;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * several locks gained together.
+ * <br/>
+ * The nodes of all names are created in one multi request, so they are queued at the same moment in every
+ * directory. Two MultiLocks sharing some names are queued in the same order in all of them, so they never wait
+ * for each other in a cycle, whatever order the names are given in. Then every name waits for its own predecessor
+ * at the same time, like a {@link Lock} of that name, so gaining them all takes as long as the longest wait.
+ * <br/>
+ * One object holds the locks at most once at a time.
+ */
+public class MultiLock {
+    private static final Logger logger = LoggerFactory.getLogger(MultiLock.class);
+    /**
+     * distinct names in order
+     */
+    private final List<String> lockNames;
+    /**
+     * locks of the current hold, null if not held
+     */
+    private volatile List<Lock> held;
+    private final CallbackDispatcher dispatcher = CallbackDispatcher.getDefault();
+
+    /**
+     * @param lockNames names of the locks to gain together
+     */
+    public MultiLock(Collection<String> lockNames) {
+        if(lockNames.isEmpty()){
+            throw new IllegalArgumentException("no lock name");
+        }
+        this.lockNames = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(lockNames)));
+    }
+
+    /**
+     * block until all locks are gained
+     * @return the fencing token of every lock by name
+     * @throws InterruptedException if the current thread is interrupted while waiting. the queued nodes are removed
+     * @throws Throwable why the locks cannot be gained
+     */
+    public Map<String, FencingToken> lock() throws Throwable {
+        return lockInterruptibly();
+    }
+
+    /**
+     * block until all locks are gained, or the current thread is interrupted
+     * @return the fencing token of every lock by name
+     * @throws InterruptedException if the current thread is interrupted while waiting. the queued nodes are removed
+     * @throws Throwable why the locks cannot be gained
+     */
+    public Map<String, FencingToken> lockInterruptibly() throws Throwable {
+        CompletableFuture<ZooKeeperResult<List<String>>> future = lockAsync();
+        ZooKeeperResult<List<String>> result;
+        try {
+            result = future.get();
+        } catch (InterruptedException e) {
+            if(!future.cancel(false)){
+                // gained at the same time. do not keep it
+                unlock();
+            }
+            throw e;
+        }
+        if(result.getThrowable() != null){
+            throw result.getThrowable();
+        }
+        return getFencingTokens();
+    }
+
+    /**
+     * wait at most timeout for all locks
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of the timeout argument
+     * @return true if all locks are gained, false if timeout. the queued nodes are removed when timeout
+     * @throws InterruptedException if the current thread is interrupted while waiting. the queued nodes are removed
+     * @throws Throwable why the locks cannot be gained
+     */
+    public boolean tryLock(long timeout, TimeUnit unit) throws Throwable {
+        CompletableFuture<ZooKeeperResult<List<String>>> future = lockAsync();
+        ZooKeeperResult<List<String>> result;
+        try {
+            result = future.get(timeout, unit);
+        } catch (TimeoutException e) {
+            if(future.cancel(false)){
+                return false;
+            }
+            // gained at the same time
+            result = future.join();
+        } catch (InterruptedException e) {
+            if(!future.cancel(false)){
+                unlock();
+            }
+            throw e;
+        }
+        if(result.getThrowable() != null){
+            throw result.getThrowable();
+        }
+        return true;
+    }
+
+    /**
+     * start to gain all locks without blocking.
+     * cancel the future to give up waiting, the queued nodes are removed at once
+     * @return a future completes when all locks are gained, with the real lock nodes in the order of names as data.
+     *          or with the throwable why they cannot be gained
+     */
+    public CompletableFuture<ZooKeeperResult<List<String>>> lockAsync() {
+        Acquisition acquisition = new Acquisition();
+        // the session may take a while to connect. wait for it off the dispatcher
+        ZooKeeperSession.getZooKeeperClientAsync(Lock.ROOT).whenComplete((session, throwable) ->
+                dispatcher.dispatch(dispatchKey(), () -> acquisition.onConnected(session, throwable)));
+        return acquisition.future;
+    }
+
+    /**
+     * one call of {@link #lockAsync()}, until the nodes are created and every lock waits on its own.
+     * <br/>
+     * The nodes are named with a random id of this call, like the node of a {@link Lock}. When the result of
+     * the multi request is lost, the directories are listed to find the nodes by the id. They are all made or none,
+     * so they are taken as created if all found. Otherwise the ones found are deleted and the nodes are created again,
+     * so no node is left behind on the pooled session to block the others.
+     */
+    private class Acquisition {
+        private final CompletableFuture<ZooKeeperResult<List<String>>> future = new CompletableFuture<>();
+        private final List<Lock> locks = new ArrayList<>(lockNames.size());
+        /**
+         * session of this call, borrowed once for all locks
+         */
+        private ZooKeeper zk;
+        /**
+         * random id in the names of the nodes to create
+         */
+        private String id;
+        /**
+         * requests failed by connection loss in a row
+         */
+        private int retries;
+
+        Acquisition() {
+            for (String lockName : lockNames) {
+                locks.add(new Lock(lockName));
+            }
+        }
+
+        /**
+         * @param session the borrowed session, null if failed
+         * @param throwable why no session can be made, null if succeeded
+         */
+        private void onConnected(ZooKeeper session, Throwable throwable) {
+            if(throwable != null){
+                Futures.completeAsync(future, ZooKeeperResult.failure(null, Futures.unwrap(throwable)));
+                return;
+            }
+            zk = session;
+            if(future.isDone()){
+                // cancelled meanwhile
+                ZooKeeperSession.releaseZooKeeperClient(zk);
+                return;
+            }
+            create();
+        }
+
+        /**
+         * one request for all nodes, and for the directories of new names
+         */
+        private void create() {
+            id = Lock.newId();
+            List<String> paths = new ArrayList<>(locks.size());
+            for (Lock lock : locks) {
+                paths.add(lock.nodePrefix(id));
+            }
+            Lock.PARENTS.createAll(zk, paths, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL,
+                    (rc, path, ctx, results) -> dispatcher.dispatch(dispatchKey(), () -> onCreated(rc, results)), null);
+        }
+
+        private void onCreated(int rc, List<OpResult> results) {
+            Code code = Code.get(rc);
+            switch(code){
+                case OK:
+                    retries = 0;
+                    List<String> nodes = new ArrayList<>(results.size());
+                    for (OpResult result : results) {
+                        nodes.add(((OpResult.CreateResult) result).getPath());
+                    }
+                    waitForAll(nodes);
+                    break;
+                case CONNECTIONLOSS:
+                    // the nodes may be made or not
+                    retry(this::findCreated);
+                    break;
+                default:
+                    // nothing created
+                    fail(code);
+            }
+        }
+
+        /**
+         * list every directory to find the nodes by the id
+         */
+        private void findCreated() {
+            String[] found = new String[locks.size()];
+            Code[] codes = new Code[locks.size()];
+            int[] pending = {locks.size()};
+            for (int i = 0; i < lockNames.size(); i++) {
+                int index = i;
+                String directory = "/" + lockNames.get(i);
+                zk.getChildren(directory, false, (rc, path, ctx, children) -> dispatcher.dispatch(dispatchKey(), () -> {
+                    codes[index] = Code.get(rc);
+                    if(codes[index] == Code.OK){
+                        for (String child : children) {
+                            if(Lock.isCreatedBy(child, id)){
+                                found[index] = directory + "/" + child;
+                            }
+                        }
+                    }
+                    if(--pending[0] == 0){
+                        onCreationChecked(codes, found);
+                    }
+                }), null);
+            }
+        }
+
+        /**
+         * every directory is listed after the result of creating the nodes is lost
+         * @param codes result of listing each directory
+         * @param found the node of each lock, null if not found
+         */
+        private void onCreationChecked(Code[] codes, String[] found) {
+            Code failure = Code.OK;
+            for (Code code : codes) {
+                if(code == Code.CONNECTIONLOSS){
+                    // nodes found are kept, with the same id they are found again
+                    retry(this::findCreated);
+                    return;
+                }
+                if(code != Code.OK && code != Code.NONODE){
+                    failure = code;
+                }
+            }
+            List<String> nodes = new ArrayList<>(found.length);
+            for (String node : found) {
+                if(node != null){
+                    nodes.add(node);
+                }
+            }
+            if(failure == Code.OK && nodes.size() == found.length){
+                logger.info("found {} created before connection loss", nodes);
+                retries = 0;
+                waitForAll(nodes);
+                return;
+            }
+            // none made. any found is removed so it does not block others
+            for (String node : nodes) {
+                ZooKeeperSession.retainZooKeeperClient(zk);
+                Lock.delete(zk, node, 0, code -> ZooKeeperSession.releaseZooKeeperClient(zk));
+            }
+            if(failure != Code.OK){
+                fail(failure);
+            }else if(future.isDone()){
+                // cancelled meanwhile
+                ZooKeeperSession.releaseZooKeeperClient(zk);
+            }else{
+                create();
+            }
+        }
+
+        /**
+         * every lock waits with its own node, and gives back the session on its own
+         * @param nodes the created nodes in the order of names
+         */
+        private void waitForAll(List<String> nodes) {
+            List<CompletableFuture<ZooKeeperResult<String>>> waits = new ArrayList<>(locks.size());
+            for (int i = 0; i < locks.size(); i++) {
+                ZooKeeperSession.retainZooKeeperClient(zk);
+                waits.add(locks.get(i).lockAsync(zk, nodes.get(i)));
+            }
+            ZooKeeperSession.releaseZooKeeperClient(zk);
+            // give up the others at once when cancelled, or when one of them fails
+            future.whenComplete((result, throwable) -> {
+                if(future.isCancelled() || result.getThrowable() != null){
+                    abandon(locks, waits);
+                }
+            });
+            for (CompletableFuture<ZooKeeperResult<String>> wait : waits) {
+                wait.thenAccept(result -> {
+                    if(result.getThrowable() != null){
+                        future.complete(ZooKeeperResult.failure(result.getCode(), result.getThrowable()));
+                    }
+                });
+            }
+            CompletableFuture.allOf(waits.toArray(new CompletableFuture[0])).thenRun(() -> {
+                List<String> gained = new ArrayList<>(waits.size());
+                for (CompletableFuture<ZooKeeperResult<String>> wait : waits) {
+                    ZooKeeperResult<String> result = wait.join();
+                    if(result.getThrowable() != null){
+                        return;
+                    }
+                    gained.add(result.getData());
+                }
+                held = locks;
+                if(!future.complete(ZooKeeperResult.of(Code.OK, gained, null))){
+                    // cancelled at the same time
+                    held = null;
+                    abandon(locks, waits);
+                }
+            });
+        }
+
+        /**
+         * send a request failed by connection loss again, after a backoff growing with the failures in a row
+         * @param request the request to send again
+         */
+        private void retry(Runnable request) {
+            logger.info("connection lost while creating nodes of {}, retry {}", lockNames, retries + 1);
+            ZooKeeperSession.retryLater(retries++, () -> dispatcher.dispatch(dispatchKey(), request));
+        }
+
+        /**
+         * no node is left. give back the session and fail
+         */
+        private void fail(Code code) {
+            ZooKeeperSession.releaseZooKeeperClient(zk);
+            logger.warn("unexpected code when create nodes of {}: {}", lockNames, code);
+            Futures.completeAsync(future, ZooKeeperResult.failure(code, KeeperException.create(code, lockNames.toString())));
+        }
+    }
+
+    /**
+     * stop waiting for every lock, and release the ones gained
+     */
+    private void abandon(List<Lock> locks, List<CompletableFuture<ZooKeeperResult<String>>> waits) {
+        for (int i = 0; i < waits.size(); i++) {
+            CompletableFuture<ZooKeeperResult<String>> wait = waits.get(i);
+            if(!wait.cancel(false) && !wait.isCompletedExceptionally() && wait.join().getThrowable() == null){
+                locks.get(i).unlockAsync();
+            }
+        }
+    }
+
+    /**
+     * @return the fencing token of every lock by name, empty if not held
+     */
+    public Map<String, FencingToken> getFencingTokens() {
+        List<Lock> locks = held;
+        if(locks == null){
+            return Collections.emptyMap();
+        }
+        Map<String, FencingToken> tokens = new LinkedHashMap<>();
+        for (int i = 0; i < locks.size(); i++) {
+            tokens.put(lockNames.get(i), locks.get(i).getFencingToken());
+        }
+        return tokens;
+    }
+
+    /**
+     * release all locks and wait until released. nothing happens if not held
+     */
+    public void unlock() {
+        try {
+            ZooKeeperResult<List<String>> result = Futures.await(unlockAsync());
+            if(result.getThrowable() != null){
+                logger.error("exception while unlock {}: {} ", lockNames, result.getThrowable());
+            }
+        } catch (IOException e) {
+            logger.error("exception while unlock {}: {} ", lockNames, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * release all locks without blocking
+     * @return a future completes when all lock nodes are deleted, with the real lock nodes as data
+     */
+    public CompletableFuture<ZooKeeperResult<List<String>>> unlockAsync() {
+        List<Lock> locks = held;
+        held = null;
+        if(locks == null){
+            return CompletableFuture.completedFuture(ZooKeeperResult.of(Code.OK, null, null));
+        }
+        List<CompletableFuture<ZooKeeperResult<String>>> unlocks = new ArrayList<>(locks.size());
+        for (Lock lock : locks) {
+            unlocks.add(lock.unlockAsync());
+        }
+        return CompletableFuture.allOf(unlocks.toArray(new CompletableFuture[0])).thenApply(ignore -> {
+            List<String> nodes = new ArrayList<>(unlocks.size());
+            for (CompletableFuture<ZooKeeperResult<String>> unlock : unlocks) {
+                ZooKeeperResult<String> result = unlock.join();
+                if(result.getThrowable() != null){
+                    return ZooKeeperResult.failure(result.getCode(), result.getThrowable());
+                }
+                nodes.add(result.getData());
+            }
+            return ZooKeeperResult.of(Code.OK, nodes, null);
+        });
+    }
+
+    /**
+     * callbacks of the same names run in order
+     */
+    private String dispatchKey() {
+        return lockNames.toString();
+    }
+}
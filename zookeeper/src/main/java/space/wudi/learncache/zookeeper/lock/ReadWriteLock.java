@@ -0,0 +1,33 @@
+package space.wudi.learncache.zookeeper.lock;
+
+/**
+ * a distributed read/write lock.
+ * <br/>
+ * It uses the same /locks/{lockName} directory of EPHEMERAL_SEQUENTIAL nodes as {@link Lock}.
+ * Readers create "{lockName}-read-{id}-{serialNumber}" and only watch the nearest writer before them,
+ * so readers in a row hold the lock together.
+ * Writers create "{lockName}-{id}-{serialNumber}", exactly like a {@link Lock} of the same name, and watch the
+ * node right before them. So a plain Lock of the same name works as a writer.
+ * Readers are told apart by the mark right after the lock name, so the name may contain "-read-" as well.
+ */
+public class ReadWriteLock {
+    private final String lockName;
+
+    public ReadWriteLock(String lockName) {
+        this.lockName = lockName;
+    }
+
+    /**
+     * @return a new lock shared with other readers. one object holds the lock at most once at a time
+     */
+    public Lock readLock() {
+        return new Lock(lockName, true);
+    }
+
+    /**
+     * @return a new exclusive lock. one object holds the lock at most once at a time
+     */
+    public Lock writeLock() {
+        return new Lock(lockName);
+    }
+}
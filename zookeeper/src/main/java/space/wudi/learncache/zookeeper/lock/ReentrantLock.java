@@ -0,0 +1,103 @@
+package space.wudi.learncache.zookeeper.lock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a distributed lock the holding thread may lock again.
+ * <br/>
+ * The owner thread and its hold count are kept locally, so a nested lock costs no network call.
+ * Only the outermost unlock deletes the lock node.
+ * One object can be shared by threads, each thread waits with its own node.
+ */
+public class ReentrantLock {
+    private final String lockName;
+    /**
+     * the thread holding the lock, null if not held
+     */
+    private volatile Thread owner;
+    /**
+     * times the owner locked. only touched by the owner
+     */
+    private int holds;
+    /**
+     * the lock in zookeeper. only touched by the owner
+     */
+    private Lock held;
+
+    public ReentrantLock(String lockName) {
+        this.lockName = lockName;
+    }
+
+    /**
+     * block until the lock is gained. return at once if the current thread holds it
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     * @throws Throwable why the lock cannot be gained
+     */
+    public void lock() throws Throwable {
+        if(owner == Thread.currentThread()){
+            holds++;
+            return;
+        }
+        Lock lock = new Lock(lockName);
+        lock.lock();
+        own(lock);
+    }
+
+    /**
+     * wait at most timeout for the lock. return true at once if the current thread holds it
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of the timeout argument
+     * @return true if the lock is gained, false if timeout
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     * @throws Throwable why the lock cannot be gained
+     */
+    public boolean tryLock(long timeout, TimeUnit unit) throws Throwable {
+        if(owner == Thread.currentThread()){
+            holds++;
+            return true;
+        }
+        Lock lock = new Lock(lockName);
+        if(!lock.tryLock(timeout, unit)){
+            return false;
+        }
+        own(lock);
+        return true;
+    }
+
+    /**
+     * release one hold. the lock node is deleted when the last hold is released
+     * @throws IllegalMonitorStateException if the current thread does not hold this lock
+     */
+    public void unlock() {
+        if(owner != Thread.currentThread()){
+            throw new IllegalMonitorStateException("lock " + lockName + " is not held by " + Thread.currentThread().getName());
+        }
+        if(--holds > 0){
+            return;
+        }
+        Lock lock = held;
+        held = null;
+        owner = null;
+        lock.unlock();
+    }
+
+    /**
+     * @return true if the current thread holds this lock
+     */
+    public boolean isHeldByCurrentThread() {
+        return owner == Thread.currentThread();
+    }
+
+    /**
+     * @return how many times the current thread holds this lock, 0 if not held
+     */
+    public int getHoldCount() {
+        return isHeldByCurrentThread() ? holds : 0;
+    }
+
+    private void own(Lock lock) {
+        held = lock;
+        holds = 1;
+        owner = Thread.currentThread();
+    }
+}
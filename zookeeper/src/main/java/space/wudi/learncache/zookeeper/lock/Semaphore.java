@@ -0,0 +1,78 @@
+package space.wudi.learncache.zookeeper.lock;
+
+import space.wudi.learncache.zookeeper.util.ZooKeeperResult;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a distributed semaphore of a fixed number of permits.
+ * <br/>
+ * It uses the /locks/{name} directory of EPHEMERAL_SEQUENTIAL nodes like {@link Lock}, so do not give a lock
+ * and a semaphore the same name. A node with less than permits nodes before it holds a permit. A holder marks its node,
+ * and a waiter watches the node right before it, listing the children again when that one is marked or gone.
+ * The first waiter watches all holders, so a permit released out of order is taken at once.
+ * A handoff tells one or two waiters rather than all of them, however many are queued.
+ * <br/>
+ * All semaphores of one name must be created with the same permits.
+ * One object holds at most one permit at a time.
+ */
+public class Semaphore {
+    private final Lock permit;
+
+    /**
+     * @param name name of the semaphore
+     * @param permits how many holders at the same time
+     */
+    public Semaphore(String name, int permits) {
+        if(permits < 1){
+            throw new IllegalArgumentException("permits should be positive: " + permits);
+        }
+        this.permit = new Lock(name, false, permits);
+    }
+
+    /**
+     * block until a permit is gained
+     * @return the fencing token of this permit
+     * @throws InterruptedException if the current thread is interrupted while waiting. the queued node is removed
+     * @throws Throwable why the permit cannot be gained
+     */
+    public FencingToken acquire() throws Throwable {
+        return permit.lockInterruptibly();
+    }
+
+    /**
+     * wait at most timeout for a permit
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of the timeout argument
+     * @return true if a permit is gained, false if timeout. the queued node is removed when timeout
+     * @throws InterruptedException if the current thread is interrupted while waiting. the queued node is removed
+     * @throws Throwable why the permit cannot be gained
+     */
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws Throwable {
+        return permit.tryLock(timeout, unit);
+    }
+
+    /**
+     * start to gain a permit without blocking. cancel the future to give up waiting
+     * @return a future completes when a permit is gained, with the node as data
+     */
+    public CompletableFuture<ZooKeeperResult<String>> acquireAsync() {
+        return permit.lockAsync();
+    }
+
+    /**
+     * give back the permit and wait until done. nothing happens if no permit is held
+     */
+    public void release() {
+        permit.unlock();
+    }
+
+    /**
+     * give back the permit without blocking
+     * @return a future completes when the node is deleted
+     */
+    public CompletableFuture<ZooKeeperResult<String>> releaseAsync() {
+        return permit.unlockAsync();
+    }
+}
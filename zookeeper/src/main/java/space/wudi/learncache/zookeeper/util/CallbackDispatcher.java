@@ -0,0 +1,274 @@
+package space.wudi.learncache.zookeeper.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * run callbacks of zookeeper out of its event thread.
+ * <br/>
+ * A zookeeper session has only one event thread. Blocking in it (waiting for another
+ * async call of the same session for example) blocks the session forever.
+ * Callbacks dispatched here run on a fixed pool of threads instead, never on the dispatching thread,
+ * so they are free to block or to start nested async calls on the same session.
+ * <br/>
+ * Callbacks with the same key (usually the znode path) run one by one in the order they were dispatched.
+ * Callbacks with different keys run in parallel.
+ * <br/>
+ * Dispatching never blocks, it is done from the zookeeper event thread and from callbacks.
+ * With a limit of pending callbacks, a callback passing the latest state of its key, dispatched by
+ * {@link #dispatchLatest(String, Object, Runnable)}, replaces the one of its key and owner still waiting while the limit is reached,
+ * so a slow consumer skips the states in between rather than piling them up. Other callbacks are queued anyway and counted.
+ * <br/>
+ * Meters tagged with the name of the dispatcher, registered to {@link Metrics#globalRegistry}:
+ * <ul>
+ *     <li>zookeeper.dispatch.latency: from dispatched until the callback starts to run</li>
+ *     <li>zookeeper.dispatch.pending: callbacks dispatched and not finished</li>
+ *     <li>zookeeper.dispatch.coalesced: callbacks replaced by a later one of the same key while the limit is reached</li>
+ *     <li>zookeeper.dispatch.overflow: callbacks queued while the limit is reached</li>
+ * </ul>
+ */
+public class CallbackDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(CallbackDispatcher.class);
+
+    /**
+     * how many callbacks of consumers can be pending before the latest states are coalesced
+     */
+    private static final int CONSUMER_MAX_PENDING = 10000;
+
+    private static final CallbackDispatcher DEFAULT = new CallbackDispatcher("callback", newExecutor(
+            "zookeeper-callback", Runtime.getRuntime().availableProcessors()), 0);
+
+    /**
+     * consumers may block, so a few threads even with few processors
+     */
+    private static final CallbackDispatcher CONSUMER_DEFAULT = new CallbackDispatcher("consumer", newExecutor(
+            "zookeeper-consumer", Math.max(4, Runtime.getRuntime().availableProcessors())), CONSUMER_MAX_PENDING);
+
+    /**
+     * the executor to run callbacks
+     */
+    private final Executor executor;
+    /**
+     * how many callbacks can be pending before the latest states are coalesced, 0 for no limit
+     */
+    private final int maxPending;
+    /**
+     * callbacks dispatched and not finished
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Timer latency;
+    private final Counter coalesced;
+    private final Counter overflow;
+    /**
+     * callbacks waiting to run, by key. a key is removed as soon as it has nothing to run
+     */
+    private final ConcurrentMap<String, SerialQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * @param executor the executor to run callbacks
+     */
+    public CallbackDispatcher(Executor executor) {
+        this("custom", executor, 0);
+    }
+
+    /**
+     * @param name tags the meters. dispatchers of the same name share them
+     * @param executor the executor to run callbacks
+     * @param maxPending how many callbacks can be pending before the latest states are coalesced, 0 for no limit
+     */
+    public CallbackDispatcher(String name, Executor executor, int maxPending) {
+        this.executor = executor;
+        this.maxPending = Math.max(0, maxPending);
+        MeterRegistry registry = Metrics.globalRegistry;
+        this.latency = Timer.builder("zookeeper.dispatch.latency")
+                .description("time from dispatched until the callback starts to run")
+                .tag("dispatcher", name)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofNanos(10000))
+                .maximumExpectedValue(Duration.ofSeconds(10))
+                .register(registry);
+        this.coalesced = Counter.builder("zookeeper.dispatch.coalesced")
+                .description("callbacks replaced by a later one of the same key while the limit is reached")
+                .tag("dispatcher", name)
+                .register(registry);
+        this.overflow = Counter.builder("zookeeper.dispatch.overflow")
+                .description("callbacks queued while the limit is reached")
+                .tag("dispatcher", name)
+                .register(registry);
+        Gauge.builder("zookeeper.dispatch.pending", inFlight, AtomicInteger::get)
+                .description("callbacks dispatched and not finished")
+                .tag("dispatcher", name)
+                .register(registry);
+    }
+
+    /**
+     * @return the dispatcher shared by the recipes of this project
+     */
+    public static CallbackDispatcher getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return the dispatcher shared by the recipes to call back their users, like onChange of a config listener.
+     * apart from {@link #getDefault()}, so a slow consumer never holds the recipes up. it limits the pending callbacks
+     */
+    public static CallbackDispatcher getConsumerDefault() {
+        return CONSUMER_DEFAULT;
+    }
+
+    /**
+     * run callback after all callbacks dispatched before with the same key. never blocks
+     * @param key ordering key, usually the path of the znode
+     * @param callback what to run
+     */
+    public void dispatch(String key, Runnable callback) {
+        dispatch(key, null, callback);
+    }
+
+    /**
+     * the same as {@link #dispatch(String, Runnable)}, for a callback passing the latest state of key, like a config read.
+     * while the limit of pending callbacks is reached, it replaces the last callback of key waiting to run
+     * if that one is dispatched here by the same owner. the callbacks running or dispatched otherwise are kept
+     * @param key ordering key, usually the path of the znode
+     * @param owner who takes the state, like the consumer called back. compared by identity
+     * @param callback what to run
+     */
+    public void dispatchLatest(String key, Object owner, Runnable callback) {
+        dispatch(key, Objects.requireNonNull(owner), callback);
+    }
+
+    /**
+     * @param owner null if the callback is never replaced
+     */
+    private void dispatch(String key, Object owner, Runnable callback) {
+        boolean full = maxPending > 0 && inFlight.get() >= maxPending;
+        inFlight.incrementAndGet();
+        Task task = new Task(callback, System.nanoTime(), owner);
+        boolean[] idle = new boolean[1];
+        boolean[] replaced = new boolean[1];
+        SerialQueue queue = queues.compute(key, (k, q) -> {
+            if(q == null){
+                q = new SerialQueue(k);
+            }
+            Task last = q.callbacks.peekLast();
+            if(full && owner != null && last != null && last.owner == owner){
+                // not started, it is still queued
+                last.callback = callback;
+                replaced[0] = true;
+                return q;
+            }
+            q.callbacks.add(task);
+            idle[0] = q.pending++ == 0;
+            return q;
+        });
+        if(replaced[0]){
+            inFlight.decrementAndGet();
+            coalesced.increment();
+            return;
+        }
+        if(full){
+            overflow.increment();
+        }
+        if(idle[0]){
+            // nobody is running callbacks of this key now. start one
+            executor.execute(queue);
+        }
+    }
+
+    /**
+     * create a fixed size executor of daemon threads.
+     * its queue holds at most one task per key, the callbacks of a key wait in their own queue, so it is not bounded:
+     * a bounded one would have to reject, or run callbacks on the dispatching thread, which is often the zookeeper event thread
+     * @param name prefix of thread names
+     * @param threads number of threads
+     * @return the executor
+     */
+    public static ThreadPoolExecutor newExecutor(String name, int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory);
+    }
+
+    /**
+     * callbacks of one key. only one thread drains it at a time.
+     * callbacks and pending are only touched inside {@link ConcurrentMap#compute} of the key
+     */
+    private class SerialQueue implements Runnable {
+        private final String key;
+        private final Deque<Task> callbacks = new ArrayDeque<>();
+        private int pending;
+
+        SerialQueue(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            boolean more = true;
+            while(more){
+                Task[] next = new Task[1];
+                queues.computeIfPresent(key, (k, q) -> {
+                    next[0] = q.callbacks.poll();
+                    return q;
+                });
+                latency.record(System.nanoTime() - next[0].dispatchedAt, TimeUnit.NANOSECONDS);
+                try {
+                    next[0].callback.run();
+                } catch (Throwable e) {
+                    logger.error("callback of {} failed", key, e);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+                boolean[] left = new boolean[1];
+                queues.computeIfPresent(key, (k, q) -> {
+                    left[0] = --q.pending > 0;
+                    // remove the key when nothing left
+                    return left[0] ? q : null;
+                });
+                more = left[0];
+            }
+        }
+    }
+
+    /**
+     * a callback and when it was dispatched.
+     * callback is only replaced inside {@link ConcurrentMap#compute} of the key, before the task is polled
+     */
+    private static class Task {
+        private Runnable callback;
+        private final long dispatchedAt;
+        /**
+         * who takes the latest state of the key passed, the callback may be replaced by a later one of the same.
+         * null if never replaced
+         */
+        private final Object owner;
+
+        Task(Runnable callback, long dispatchedAt, Object owner) {
+            this.callback = callback;
+            this.dispatchedAt = dispatchedAt;
+            this.owner = owner;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package space.wudi.learncache.zookeeper.util;
+
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * create a node together with its missing parents.
+ * <br/>
+ * Parents known to exist are remembered, so a node under a known parent costs one plain create.
+ * Otherwise the parent is created in the same multi request as the node, and one more ancestor is
+ * added to the request each time the topmost one turns out missing as well. So a node under a new
+ * parent costs one round trip, not one per path level.
+ * <br/>
+ * Parents are created as container nodes, which the server removes once their last child is gone.
+ * A remembered parent may be removed that way, then the create fails with NONODE, the parent is
+ * forgotten and created again.
+ */
+public class EnsurePath {
+    private static final Logger logger = LoggerFactory.getLogger(EnsurePath.class);
+    /**
+     * one instance per chroot, paths are relative to it
+     */
+    private static final ConcurrentMap<String, EnsurePath> INSTANCES = new ConcurrentHashMap<>();
+    /**
+     * parents before children
+     */
+    public static final Comparator<String> TOP_DOWN = Comparator.comparingInt(String::length).thenComparing(Comparator.naturalOrder());
+
+    private final String root;
+    /**
+     * paths created or seen existing
+     */
+    private final Set<String> existing = ConcurrentHashMap.newKeySet();
+
+    private EnsurePath(String root) {
+        this.root = root;
+    }
+
+    /**
+     * @param root the chroot of the sessions used with it
+     * @return the instance shared by all sessions of root
+     */
+    public static EnsurePath of(String root) {
+        return INSTANCES.computeIfAbsent(root, EnsurePath::new);
+    }
+
+    /**
+     * create a node like {@link ZooKeeper#create(String, byte[], List, CreateMode, AsyncCallback.Create2Callback, Object)},
+     * creating the missing parents first.
+     * the stat given to the callback is null if the node is created together with its parents
+     * @param zk a session of the root of this instance
+     * @param path the node to create
+     * @param data data of the node
+     * @param acl acl of the node. parents are open to everyone
+     * @param createMode mode of the node. parents are containers
+     * @param cb called once with the result of creating the node
+     * @param ctx passed to the callback
+     */
+    public void create(ZooKeeper zk, String path, byte[] data, List<ACL> acl, CreateMode createMode, AsyncCallback.Create2Callback cb, Object ctx) {
+        new Creation(zk, Collections.singletonList(Op.create(path, data, acl, createMode)), data, acl, createMode, cb, null, ctx).start();
+    }
+
+    /**
+     * create nodes all or none in one multi request, creating the missing parents in the same request
+     * @param zk a session of the root of this instance
+     * @param paths the nodes to create
+     * @param data data of every node
+     * @param acl acl of every node. parents are open to everyone
+     * @param createMode mode of every node. parents are containers
+     * @param cb called once with the result. the results are {@link OpResult.CreateResult} in the order of paths. if failed, like {@link #multi}
+     * @param ctx passed to the callback
+     */
+    public void createAll(ZooKeeper zk, List<String> paths, byte[] data, List<ACL> acl, CreateMode createMode, AsyncCallback.MultiCallback cb, Object ctx) {
+        List<Op> ops = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            ops.add(Op.create(path, data, acl, createMode));
+        }
+        multi(zk, ops, cb, ctx);
+    }
+
+    /**
+     * run operations all or none in one multi request, creating the missing parents of the created nodes in the same request.
+     * a node created by an earlier operation is not taken as missing
+     * @param zk a session of the root of this instance
+     * @param ops the operations, parents before children
+     * @param cb called once with the result. the results are in the order of ops, with the paths created relative to root.
+     *           if failed, the error results of ops, or null if there is none
+     * @param ctx passed to the callback
+     */
+    public void multi(ZooKeeper zk, List<Op> ops, AsyncCallback.MultiCallback cb, Object ctx) {
+        new Creation(zk, ops, null, null, null, null, cb, ctx).start();
+    }
+
+    /**
+     * forget a path and everything beneath, so they are checked again on next create
+     * @param path the path removed from zookeeper
+     */
+    public void forget(String path) {
+        existing.removeIf(known -> known.equals(path) || known.startsWith(path + "/"));
+    }
+
+    /**
+     * the async multi request returns created paths with the chroot, unlike a plain create
+     * @param root the chroot of the session
+     * @param name path of the created node
+     * @param path path requested
+     * @return the path relative to root
+     */
+    static String stripRoot(String root, String name, String path) {
+        if(!"/".equals(root) && name.startsWith(root + path)){
+            return name.substring(root.length());
+        }
+        return name;
+    }
+
+    /**
+     * @param path an absolute path
+     * @return its parent, "/" for a node at the top or the root itself
+     */
+    static String parentOf(String path) {
+        int index = path.lastIndexOf('/');
+        return index <= 0 ? "/" : path.substring(0, index);
+    }
+
+    /**
+     * nodes to create, or operations. tries a plain create for a single node while its parent is known,
+     * otherwise a multi request with up to depth missing ancestors of each created node
+     */
+    private class Creation implements AsyncCallback.Create2Callback, AsyncCallback.MultiCallback {
+        private final ZooKeeper zk;
+        private final List<Op> ops;
+        /**
+         * data, acl and mode of a single node, for the plain create
+         */
+        private final byte[] data;
+        private final List<ACL> acl;
+        private final CreateMode createMode;
+        /**
+         * callback of a single node, or null
+         */
+        private final AsyncCallback.Create2Callback singleCb;
+        /**
+         * callback of nodes, or null
+         */
+        private final AsyncCallback.MultiCallback allCb;
+        private final Object ctx;
+        /**
+         * how many levels of missing ancestors to create in one request
+         */
+        private int depth = 1;
+        /**
+         * ancestors in the multi request on the way, parents before children
+         */
+        private List<String> creatingParents;
+
+        Creation(ZooKeeper zk, List<Op> ops, byte[] data, List<ACL> acl, CreateMode createMode,
+                 AsyncCallback.Create2Callback singleCb, AsyncCallback.MultiCallback allCb, Object ctx) {
+            this.zk = zk;
+            this.ops = ops;
+            this.data = data;
+            this.acl = acl;
+            this.createMode = createMode;
+            this.singleCb = singleCb;
+            this.allCb = allCb;
+            this.ctx = ctx;
+        }
+
+        private void start() {
+            creatingParents = missingParents();
+            if(creatingParents.isEmpty() && singleCb != null){
+                zk.create(ops.get(0).getPath(), data, acl, createMode, this, ctx);
+                return;
+            }
+            if(!creatingParents.isEmpty()){
+                logger.info("creating {} ops with parents {} under {}", ops.size(), creatingParents, root);
+            }
+            List<Op> request = new ArrayList<>(creatingParents.size() + ops.size());
+            for (String parent : creatingParents) {
+                request.add(Op.create(parent, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.CONTAINER));
+            }
+            request.addAll(ops);
+            zk.multi(request, this, ctx);
+        }
+
+        /**
+         * @return ancestors not known to exist, at most depth of them for each created node, parents before children
+         */
+        private List<String> missingParents() {
+            Set<String> created = new HashSet<>();
+            for (Op op : ops) {
+                if(op instanceof Op.Create){
+                    created.add(op.getPath());
+                }
+            }
+            Set<String> parents = new TreeSet<>(TOP_DOWN);
+            for (String path : created) {
+                String parent = parentOf(path);
+                for (int level = 0; level < depth && !"/".equals(parent) && !existing.contains(parent); level++) {
+                    if(!created.contains(parent)){
+                        parents.add(parent);
+                    }
+                    parent = parentOf(parent);
+                }
+            }
+            return new ArrayList<>(parents);
+        }
+
+        /**
+         * callback of the plain create
+         */
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name, Stat stat) {
+            if(Code.get(rc) == Code.NONODE && !"/".equals(parentOf(path))){
+                // the parent was removed after it was remembered
+                logger.info("parent of {} is gone under {}, creating again", path, root);
+                forget(parentOf(path));
+                start();
+                return;
+            }
+            singleCb.processResult(rc, path, ctx, name, stat);
+        }
+
+        /**
+         * callback of the multi request
+         */
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<OpResult> opResults) {
+            Code code = Code.get(rc);
+            if(code == Code.OK){
+                existing.addAll(creatingParents);
+                List<OpResult> results = new ArrayList<>(ops.size());
+                for (int i = 0; i < ops.size(); i++) {
+                    OpResult result = opResults.get(creatingParents.size() + i);
+                    if(result instanceof OpResult.CreateResult){
+                        OpResult.CreateResult created = (OpResult.CreateResult) result;
+                        result = new OpResult.CreateResult(stripRoot(root, created.getPath(), ops.get(i).getPath()), created.getStat());
+                    }
+                    results.add(result);
+                }
+                finish(rc, results);
+                return;
+            }
+            int failed = failedIndex(opResults);
+            if(failed < 0){
+                // no result
+                finish(rc, null);
+                return;
+            }
+            if(failed >= creatingParents.size()){
+                Op op = ops.get(failed - creatingParents.size());
+                String node = op.getPath();
+                if(code == Code.NONODE && op instanceof Op.Create && !"/".equals(parentOf(node))){
+                    // the parent was removed after it was remembered
+                    logger.info("parent of {} is gone under {}, creating again", node, root);
+                    forget(parentOf(node));
+                    start();
+                    return;
+                }
+                finish(rc, opResults.subList(creatingParents.size(), opResults.size()));
+                return;
+            }
+            String parent = creatingParents.get(failed);
+            switch(code){
+                case NODEEXISTS:
+                    // created by someone else, so are the ones above
+                    existing.add(parent);
+                    start();
+                    break;
+                case NONODE:
+                    if(!"/".equals(parentOf(parent))){
+                        // one more level is missing, maybe one remembered but removed
+                        forget(parentOf(parent));
+                        depth++;
+                        start();
+                        break;
+                    }
+                    logger.warn("cannot create {}, root {} not exists", parent, root);
+                    finish(rc, null);
+                    break;
+                default:
+                    logger.warn("cannot create parent {} under {}: {}", parent, root, code);
+                    finish(rc, null);
+            }
+        }
+
+        private void finish(int rc, List<OpResult> results) {
+            if(allCb != null){
+                allCb.processResult(rc, null, ctx, results);
+                return;
+            }
+            OpResult.CreateResult result = rc != Code.OK.intValue() || results == null ? null : (OpResult.CreateResult) results.get(0);
+            singleCb.processResult(rc, ops.get(0).getPath(), ctx, result == null ? null : result.getPath(), result == null ? null : result.getStat());
+        }
+
+        /**
+         * @return index of the operation failed the multi request, -1 if unknown
+         */
+        private int failedIndex(List<OpResult> opResults) {
+            if(opResults == null){
+                return -1;
+            }
+            for (int i = 0; i < opResults.size(); i++) {
+                OpResult result = opResults.get(i);
+                if(result instanceof OpResult.ErrorResult){
+                    int err = ((OpResult.ErrorResult) result).getErr();
+                    if(err != Code.OK.intValue() && err != Code.RUNTIMEINCONSISTENCY.intValue()){
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+    }
+}
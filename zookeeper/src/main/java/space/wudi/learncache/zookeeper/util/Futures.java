@@ -0,0 +1,101 @@
+package space.wudi.learncache.zookeeper.util;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * helpers to turn the async api into the blocking one, and to complete the futures of the async api
+ */
+public class Futures {
+
+    /**
+     * completes the futures returned to users, so their dependents never run on the dispatcher or the event thread.
+     * a dependent may block on another call of the recipes, which finishes on the dispatcher. so a thread is made
+     * whenever all are busy, rather than queueing behind the blocked ones
+     */
+    private static final ExecutorService COMPLETION = newCompletionExecutor();
+
+    private Futures() {
+    }
+
+    private static ExecutorService newCompletionExecutor() {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "zookeeper-completion-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the executor to complete the futures returned to users, and to run their dependents
+     */
+    public static Executor getCompletionExecutor() {
+        return COMPLETION;
+    }
+
+    /**
+     * complete future with value on the completion executor, out of the thread calling back
+     * @param future the future returned to users
+     * @param value the value to complete with
+     * @return a future of whether value completed it, false if it was completed or cancelled before
+     */
+    public static <T> CompletableFuture<Boolean> completeAsync(CompletableFuture<T> future, T value) {
+        return CompletableFuture.supplyAsync(() -> future.complete(value), COMPLETION);
+    }
+
+    /**
+     * @param throwable the cause
+     * @return a future already completed with throwable
+     */
+    public static <T> CompletableFuture<T> failed(Throwable throwable) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(throwable);
+        return future;
+    }
+
+    /**
+     * @param throwable given to a dependent of a failed future
+     * @return the cause it failed with, out of the CompletionException wrapped by dependent stages
+     */
+    public static Throwable unwrap(Throwable throwable) {
+        if(throwable instanceof CompletionException && throwable.getCause() != null){
+            return throwable.getCause();
+        }
+        return throwable;
+    }
+
+    /**
+     * block until the future is done
+     * @param future the future to wait for
+     * @return value of the future
+     * @throws IOException when the future failed with IOException, or any other checked exception
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException){
+                throw (IOException)cause;
+            }
+            if(cause instanceof InterruptedException){
+                throw (InterruptedException)cause;
+            }
+            if(cause instanceof RuntimeException){
+                throw (RuntimeException)cause;
+            }
+            if(cause instanceof Error){
+                throw (Error)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
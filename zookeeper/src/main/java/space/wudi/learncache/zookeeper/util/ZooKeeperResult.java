@@ -3,47 +3,58 @@ package space.wudi.learncache.zookeeper.util;
 import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.data.Stat;
 
+/**
+ * an immutable result of a zookeeper operation
+ * @param <T> type of the data
+ */
 public class ZooKeeperResult<T> {
-    private Code code;
-    private T data;
-    private Throwable throwable;
-    private Stat stat;
+    private final Code code;
+    private final T data;
+    private final Throwable throwable;
+    private final Stat stat;
 
-    ZooKeeperResult() {
+    ZooKeeperResult(Code code, T data, Throwable throwable, Stat stat) {
+        this.code = code;
+        this.data = data;
+        this.throwable = throwable;
+        this.stat = stat;
     }
 
-    public Code getCode() {
-        return code;
+    /**
+     * a result without throwable
+     * @param code return code
+     * @param data data of the result, may be null
+     * @param stat node stat info, may be null
+     */
+    public static <T> ZooKeeperResult<T> of(Code code, T data, Stat stat) {
+        return new ZooKeeperResult<>(code, data, null, stat);
     }
 
-    public void setCode(Code code) {
-        this.code = code;
+    /**
+     * a failed result
+     * @param code return code, may be null if failed before talking to zookeeper
+     * @param throwable the cause
+     */
+    public static <T> ZooKeeperResult<T> failure(Code code, Throwable throwable) {
+        return new ZooKeeperResult<>(code, null, throwable, null);
     }
 
-    public T getData() {
-        return data;
+    public Code getCode() {
+        return code;
     }
 
-    public void setData(T data) {
-        this.data = data;
+    public T getData() {
+        return data;
     }
 
     public Throwable getThrowable() {
         return throwable;
     }
 
-    public void setThrowable(Throwable throwable) {
-        this.throwable = throwable;
-    }
-
     public Stat getStat() {
         return stat;
     }
 
-    public void setStat(Stat stat) {
-        this.stat = stat;
-    }
-
     @Override
     public String toString() {
         return "ZooKeeperResult{" +
@@ -1,5 +1,7 @@
 package space.wudi.learncache.zookeeper.util;
 
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,8 +10,30 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
+/**
+ * sessions to zookeeper, pooled by root.
+ * <br/>
+ * A pooled session that expires is replaced at once, connecting again with backoff. Who used it learns it
+ * by {@link #addExpiryListener(ZooKeeper, Consumer)}, after the replacement is in the pool,
+ * and should borrow again to set up its watches and ephemeral nodes from the start.
+ * Sessions are connected on threads of their own, never on the dispatcher. A borrower on the dispatcher
+ * should use {@link #getZooKeeperClientAsync(String)}, which waits for a session being connected without blocking.
+ * A disconnected session reconnects by itself and keeps its watches. Requests failed with CONNECTIONLOSS
+ * meanwhile can be sent again after {@link #retryLater(int, Runnable)}.
+ */
 @Component
 public class ZooKeeperSession {
     private static final Logger logger = LoggerFactory.getLogger(ZooKeeperSession.class);
@@ -22,36 +46,441 @@ public class ZooKeeperSession {
      * timeout time in millisecond
      */
     private static Integer TIMEOUT;
+    /**
+     * how many live sessions are shared for one root
+     */
+    private static int POOL_SIZE = 2;
+    /**
+     * a pooled session nobody borrows for this long is closed, in millisecond
+     */
+    private static long IDLE_TIMEOUT = 60000;
+    /**
+     * first delay before connecting again or retrying a request, in millisecond. doubled by each attempt
+     */
+    private static long BACKOFF_BASE = 100;
+    /**
+     * longest delay before connecting again or retrying a request, in millisecond
+     */
+    private static long BACKOFF_MAX = 10000;
+    /**
+     * how many times to try connecting before giving up
+     */
+    private static int CONNECT_ATTEMPTS = 10;
+
+    /**
+     * session pools keyed by root (chroot)
+     */
+    private static final ConcurrentMap<String, SessionPool> POOLS = new ConcurrentHashMap<>();
+    /**
+     * every pooled session handed out, to find it back when released
+     */
+    private static final ConcurrentMap<ZooKeeper, PooledSession> SESSIONS = new ConcurrentHashMap<>();
+    /**
+     * closes idle sessions and runs delayed retries in background. tasks here must not block
+     */
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "zookeeper-session-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * connects sessions, which blocks for up to {@link #CONNECT_ATTEMPTS} timeouts and backoffs.
+     * one thread per slot being connected at most
+     */
+    private static final ExecutorService CONNECTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "zookeeper-session-connector");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     @Value("${zookeeper.servers}")String servers;
     @Value("${zookeeper.timeout}")Integer timeout;
+    @Value("${zookeeper.pool-size:2}")Integer poolSize;
+    @Value("${zookeeper.idle-timeout:60000}")Long idleTimeout;
+    @Value("${zookeeper.backoff-base:100}")Long backoffBase;
+    @Value("${zookeeper.backoff-max:10000}")Long backoffMax;
+    @Value("${zookeeper.connect-attempts:10}")Integer connectAttempts;
     @PostConstruct
     void postConstruct(){
         SERVERS = servers;
         TIMEOUT = timeout;
+        POOL_SIZE = Math.max(1, poolSize);
+        IDLE_TIMEOUT = idleTimeout;
+        BACKOFF_BASE = Math.max(1, backoffBase);
+        BACKOFF_MAX = Math.max(BACKOFF_BASE, backoffMax);
+        CONNECT_ATTEMPTS = Math.max(1, connectAttempts);
+        long period = Math.max(1, IDLE_TIMEOUT / 2);
+        TIMER.scheduleWithFixedDelay(ZooKeeperSession::closeIdleSessions, period, period, TimeUnit.MILLISECONDS);
     }
 
     /**
-     *
+     * borrow a shared session of root from the pool.
+     * the session may be used by others at the same time, so never close it.
+     * give it back by {@link #releaseZooKeeperClient(ZooKeeper)} when no longer used
      * @param root root path
      * @return ZooKeeper Session
-     * @throws IOException in cases of network failure
+     * @throws IOException in cases of network failure, or cannot connect in {@link #CONNECT_ATTEMPTS}
      * @throws InterruptedException if the current thread is interrupted while waiting
      */
     public static ZooKeeper getZooKeeperClient(String root) throws IOException, InterruptedException {
-        CountDownLatch cdl = new CountDownLatch(1);
-        final ZooKeeper zk = new ZooKeeper(SERVERS + root, TIMEOUT, event -> {
+        return Futures.await(getZooKeeperClientAsync(root));
+    }
+
+    /**
+     * the same as {@link #getZooKeeperClient(String)}, without blocking
+     * @param root root path
+     * @return a future of the session. completes exceptionally with IOException if cannot connect
+     *          in {@link #CONNECT_ATTEMPTS}, on the thread connecting if not connected yet
+     */
+    public static CompletableFuture<ZooKeeper> getZooKeeperClientAsync(String root) {
+        return POOLS.computeIfAbsent(root, SessionPool::new).borrow();
+    }
+
+    /**
+     * give back a session got from {@link #getZooKeeperClient(String)}.
+     * a session not from the pool is closed directly
+     * @param zk the session to give back. null is ignored
+     */
+    public static void releaseZooKeeperClient(ZooKeeper zk) {
+        if(zk == null){
+            return;
+        }
+        PooledSession session = SESSIONS.get(zk);
+        if(session == null){
+            close(zk);
+            return;
+        }
+        session.giveBack();
+    }
+
+    /**
+     * borrow a session again, for another user of the same session.
+     * every borrow needs its own {@link #releaseZooKeeperClient(ZooKeeper)}
+     * @param zk a session borrowed from the pool and not yet given back
+     * @return zk
+     * @throws IllegalArgumentException if zk is not from the pool
+     */
+    public static ZooKeeper retainZooKeeperClient(ZooKeeper zk) {
+        PooledSession session = SESSIONS.get(zk);
+        if(session == null){
+            throw new IllegalArgumentException("not a pooled session: " + zk);
+        }
+        session.borrowers.incrementAndGet();
+        return zk;
+    }
+
+    /**
+     * be told when a pooled session expires. the listener is called once, after the pool has renewed the session
+     * for the root or failed to, on the thread connecting. it should only dispatch its work by its own key
+     * @param zk a session borrowed from the pool
+     * @param onExpired called with the expired session
+     * @throws IllegalArgumentException if zk is not from the pool
+     */
+    public static void addExpiryListener(ZooKeeper zk, Consumer<ZooKeeper> onExpired) {
+        PooledSession session = SESSIONS.get(zk);
+        if(session == null){
+            throw new IllegalArgumentException("not a pooled session: " + zk);
+        }
+        session.expiryListeners.add(onExpired);
+    }
+
+    /**
+     * stop being told about the expiry of a session. nothing happens if not added
+     * @param zk the session given to {@link #addExpiryListener(ZooKeeper, Consumer)}
+     * @param onExpired the listener given to {@link #addExpiryListener(ZooKeeper, Consumer)}
+     */
+    public static void removeExpiryListener(ZooKeeper zk, Consumer<ZooKeeper> onExpired) {
+        PooledSession session = SESSIONS.get(zk);
+        if(session != null){
+            session.expiryListeners.remove(onExpired);
+        }
+    }
+
+    /**
+     * exponential backoff with jitter, from {@link #BACKOFF_BASE} up to {@link #BACKOFF_MAX}
+     * @param attempt how many times failed before, from 0
+     * @return milliseconds to wait before the next attempt
+     */
+    public static long backoff(int attempt) {
+        long delay = BACKOFF_MAX;
+        if(attempt < Long.numberOfLeadingZeros(BACKOFF_BASE) - 1){
+            delay = Math.min(BACKOFF_MAX, BACKOFF_BASE << attempt);
+        }
+        // half fixed, half random, so the retries of many clients spread out
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * run a task after the backoff of attempt, to retry a request failed with CONNECTIONLOSS for example.
+     * the task runs on a timer thread, so it should only send the request or dispatch
+     * @param attempt how many times failed before, from 0
+     * @param task the retry
+     */
+    public static void retryLater(int attempt, Runnable task) {
+        runLater(backoff(attempt), task);
+    }
+
+    /**
+     * run a task after a delay. the task runs on a timer thread, so it should only send a request or dispatch
+     * @param delay in millisecond
+     * @param task the task
+     */
+    public static void runLater(long delay, Runnable task) {
+        TIMER.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * create a dedicated session which is not shared with anyone.
+     * the caller owns it and should close it
+     * @param root root path
+     * @return ZooKeeper Session
+     * @throws IOException in cases of network failure, or cannot connect in {@link #CONNECT_ATTEMPTS}
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public static ZooKeeper newZooKeeperClient(String root) throws IOException, InterruptedException {
+        return connect(root, event -> {
             switch(event.getState()){
                 case SyncConnected:
                     logger.info("ZooKeeper connected");
-                    cdl.countDown();
                     break;
                 default:
                     logger.info("ZooKeeper Connection {}", event.getState());
             }
         });
-        cdl.await();
-        return zk;
     }
 
+    /**
+     * create a session and wait until connected. each attempt waits for {@link #TIMEOUT},
+     * and attempts are apart by {@link #backoff(int)}
+     * @param root root path
+     * @param watcher default watcher of the session
+     * @return the connected session
+     * @throws IOException in cases of network failure, or cannot connect in {@link #CONNECT_ATTEMPTS}
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    private static ZooKeeper connect(String root, Watcher watcher) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            CountDownLatch cdl = new CountDownLatch(1);
+            final ZooKeeper zk = new ZooKeeper(SERVERS + root, TIMEOUT, event -> {
+                if(event.getState() == Watcher.Event.KeeperState.SyncConnected){
+                    cdl.countDown();
+                }
+                watcher.process(event);
+            });
+            if(cdl.await(TIMEOUT, TimeUnit.MILLISECONDS)){
+                return zk;
+            }
+            close(zk);
+            if(attempt + 1 >= CONNECT_ATTEMPTS){
+                throw new IOException("cannot connect to " + SERVERS + root + " in " + CONNECT_ATTEMPTS + " attempts");
+            }
+            long delay = backoff(attempt);
+            logger.warn("cannot connect to {}{} in {}ms, trying again in {}ms", SERVERS, root, TIMEOUT, delay);
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * close pooled sessions that nobody borrows for longer than {@link #IDLE_TIMEOUT}
+     */
+    private static void closeIdleSessions() {
+        long now = System.currentTimeMillis();
+        for (SessionPool pool : POOLS.values()) {
+            pool.closeIdle(now);
+        }
+    }
+
+    private static void close(ZooKeeper zk) {
+        try {
+            zk.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * a fixed number of slots of live sessions to the same root.
+     * borrowers are spread over the slots by round robin
+     */
+    private static class SessionPool {
+        private final String root;
+        private final PooledSession[] slots;
+        /**
+         * the session being connected into each slot, null if none
+         */
+        private final CompletableFuture<PooledSession>[] connecting;
+        private final Object[] slotLocks;
+        private final AtomicInteger next = new AtomicInteger();
+
+        @SuppressWarnings("unchecked")
+        SessionPool(String root) {
+            this.root = root;
+            this.slots = new PooledSession[POOL_SIZE];
+            this.connecting = new CompletableFuture[POOL_SIZE];
+            this.slotLocks = new Object[POOL_SIZE];
+            for (int i = 0; i < POOL_SIZE; i++) {
+                slotLocks[i] = new Object();
+            }
+        }
+
+        CompletableFuture<ZooKeeper> borrow() {
+            int slot = Math.floorMod(next.getAndIncrement(), slots.length);
+            synchronized (slotLocks[slot]){
+                PooledSession session = slots[slot];
+                if(session != null && session.zk.getState().isAlive()){
+                    session.borrowers.incrementAndGet();
+                    return CompletableFuture.completedFuture(session.zk);
+                }
+                if(session != null){
+                    // expired or closed. whoever still holds it finishes with it, then it is closed
+                    logger.info("replacing dead session of {} at slot {}", root, slot);
+                    session.retire();
+                    slots[slot] = null;
+                }
+                return open(slot).thenApply(opened -> {
+                    opened.borrowers.incrementAndGet();
+                    return opened.zk;
+                });
+            }
+        }
+
+        /**
+         * connect a new session into the slot on a connector thread, unless one is being connected.
+         * the caller holds the lock of the slot
+         */
+        private CompletableFuture<PooledSession> open(int slot) {
+            if(connecting[slot] != null){
+                return connecting[slot];
+            }
+            CompletableFuture<PooledSession> future = new CompletableFuture<>();
+            connecting[slot] = future;
+            CONNECTOR.execute(() -> {
+                PooledSession session = new PooledSession(this, slot);
+                try {
+                    session.zk = connect(root, session);
+                } catch (IOException | InterruptedException e) {
+                    // the next borrow tries again
+                    synchronized (slotLocks[slot]){
+                        connecting[slot] = null;
+                    }
+                    future.completeExceptionally(e);
+                    return;
+                }
+                synchronized (slotLocks[slot]){
+                    session.idleSince = System.currentTimeMillis();
+                    slots[slot] = session;
+                    SESSIONS.put(session.zk, session);
+                    connecting[slot] = null;
+                }
+                future.complete(session);
+            });
+            return future;
+        }
+
+        /**
+         * replace an expired session of the slot, then tell the ones using it
+         */
+        void renew(int slot, PooledSession expired) {
+            CompletableFuture<PooledSession> renewed;
+            synchronized (slotLocks[slot]){
+                if(slots[slot] == expired){
+                    slots[slot] = null;
+                    expired.retire();
+                    renewed = open(slot);
+                }else{
+                    // replaced by a borrow already, or being replaced
+                    renewed = connecting[slot] != null ? connecting[slot] : CompletableFuture.completedFuture(slots[slot]);
+                }
+            }
+            renewed.whenComplete((session, throwable) -> {
+                if(throwable != null){
+                    logger.error("cannot renew expired session of {} at slot {}", root, slot, throwable);
+                }else{
+                    logger.info("renewed expired session of {} at slot {}", root, slot);
+                }
+                for (Consumer<ZooKeeper> listener : expired.expiryListeners) {
+                    try {
+                        listener.accept(expired.zk);
+                    } catch (RuntimeException e) {
+                        logger.error("expiry listener of {} failed", root, e);
+                    }
+                }
+                expired.expiryListeners.clear();
+            });
+        }
+
+        void closeIdle(long now) {
+            for (int i = 0; i < slots.length; i++) {
+                synchronized (slotLocks[i]){
+                    PooledSession session = slots[i];
+                    if(session != null && session.borrowers.get() == 0 && now - session.idleSince >= IDLE_TIMEOUT){
+                        logger.info("closing idle session of {} at slot {}", root, i);
+                        slots[i] = null;
+                        session.retire();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * a session in the pool with the number of its borrowers.
+     * it is the default watcher of the session, to replace it when expired
+     */
+    private static class PooledSession implements Watcher {
+        private final SessionPool pool;
+        private final int slot;
+        private volatile ZooKeeper zk;
+        private final AtomicInteger borrowers = new AtomicInteger();
+        private final Set<Consumer<ZooKeeper>> expiryListeners = ConcurrentHashMap.newKeySet();
+        private volatile long idleSince = System.currentTimeMillis();
+        private volatile boolean retired;
+
+        PooledSession(SessionPool pool, int slot) {
+            this.pool = pool;
+            this.slot = slot;
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            switch(event.getState()){
+                case Disconnected:
+                    // the client reconnects by itself within the session timeout
+                    logger.warn("session of {} at slot {} disconnected", pool.root, slot);
+                    break;
+                case Expired:
+                    logger.warn("session of {} at slot {} expired", pool.root, slot);
+                    // closing and connecting may block, leave the event thread
+                    CONNECTOR.execute(() -> pool.renew(slot, this));
+                    break;
+                default:
+                    logger.info("session of {} at slot {} {}", pool.root, slot, event.getState());
+            }
+        }
+
+        void giveBack() {
+            if(borrowers.decrementAndGet() <= 0){
+                idleSince = System.currentTimeMillis();
+                if(retired){
+                    closeNow();
+                }
+            }
+        }
+
+        /**
+         * take out of the pool. close at once if nobody holds it, or when the last one gives back
+         */
+        void retire() {
+            retired = true;
+            if(borrowers.get() <= 0){
+                closeNow();
+            }
+        }
+
+        private void closeNow() {
+            if(SESSIONS.remove(zk, this)){
+                close(zk);
+            }
+        }
+    }
 }
@@ -0,0 +1,69 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkManifestTest {
+    private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    @Test
+    void roundTrip() throws IOException {
+        byte[] data = new byte[2500];
+        ThreadLocalRandom.current().nextBytes(data);
+        ChunkManifest manifest = ChunkManifest.of(data, 1000);
+        byte[] encoded = manifest.encode();
+        assertTrue(ChunkManifest.isManifest(encoded));
+        ChunkManifest decoded = ChunkManifest.decode(encoded, MAX_LENGTH);
+        assertEquals(manifest.generation, decoded.generation);
+        assertEquals(1000, decoded.chunkSize);
+        assertEquals(3, decoded.chunks);
+        assertEquals(2500, decoded.length);
+        assertEquals(ChunkManifest.crc(data, data.length), decoded.crc);
+        assertEquals(1000, decoded.chunkLength(0));
+        assertEquals(500, decoded.chunkLength(2));
+    }
+
+    @Test
+    void chunksBelongToTheirGeneration() {
+        ChunkManifest manifest = ChunkManifest.of(new byte[10], 4);
+        String chunk = manifest.chunkPath("/app/db", 1);
+        assertTrue(chunk.startsWith("/app/db/" + ChunkManifest.CHUNK_PREFIX));
+        assertTrue(ChunkManifest.isChunk(chunk));
+        assertTrue(manifest.owns(chunk.substring(chunk.lastIndexOf('/') + 1)));
+        assertFalse(ChunkManifest.of(new byte[10], 4).owns(chunk.substring(chunk.lastIndexOf('/') + 1)));
+        assertFalse(ChunkManifest.isChunk("/app/db"));
+    }
+
+    @Test
+    void configIsNotAManifest() throws IOException {
+        assertFalse(ChunkManifest.isManifest(Codecs.getDefault().encode(new Config("x"))));
+        assertFalse(ChunkManifest.isManifest(null));
+        assertThrows(IOException.class, () -> ChunkManifest.decode(new byte[]{ChunkManifest.FORMAT}, MAX_LENGTH));
+    }
+
+    @Test
+    void brokenManifestIsRejected() {
+        assertThrows(IOException.class, () -> ChunkManifest.decode(manifest(1000, 4, 2500), MAX_LENGTH));
+        assertThrows(IOException.class, () -> ChunkManifest.decode(manifest(0, 0, 0), MAX_LENGTH));
+        assertThrows(IOException.class, () -> ChunkManifest.decode(manifest(1000, 1, -1), MAX_LENGTH));
+    }
+
+    @Test
+    void lengthAboveTheLimitIsRejected() {
+        IOException e = assertThrows(IOException.class, () -> ChunkManifest.decode(manifest(1 << 20, 2048, Integer.MAX_VALUE), MAX_LENGTH));
+        assertTrue(e.getMessage().contains("larger than"), e.getMessage());
+    }
+
+    private static byte[] manifest(int chunkSize, int chunks, int length) {
+        return ByteBuffer.allocate(ChunkManifest.of(new byte[1], 1).encode().length)
+                .put(ChunkManifest.FORMAT).putLong(1).putInt(chunkSize).putInt(chunks).putInt(length).putInt(0).array();
+    }
+}
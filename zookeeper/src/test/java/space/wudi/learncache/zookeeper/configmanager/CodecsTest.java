@@ -0,0 +1,82 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CodecsTest {
+
+    private static void assertRoundTrip(Codec codec, String value) throws IOException {
+        byte[] data = codec.encode(new Config(value));
+        assertEquals(codec.getFormat(), data[0]);
+        assertSame(codec.getClass(), Codecs.forFormat(data[0]).getClass());
+        assertEquals(value, codec.decode(data).getConfig());
+        assertEquals(value, Codecs.decode(data).getConfig());
+    }
+
+    @Test
+    void everyKnownCodecRoundTrips() throws IOException {
+        for (Codec codec : new Codec[]{new BinaryCodec(), new JavaSerializationCodec(), new JsonCodec(), new DeflateCodec(new JsonCodec())}) {
+            assertRoundTrip(codec, "plain");
+            assertRoundTrip(codec, "");
+            assertRoundTrip(codec, "中文 \u0000 \"quoted\" {json}");
+        }
+    }
+
+    @Test
+    void binaryKeepsNull() throws IOException {
+        BinaryCodec codec = new BinaryCodec();
+        assertNull(Codecs.decode(codec.encode(new Config(null))).getConfig());
+        assertTrue(codec.encode(new Config("x")).length < new JavaSerializationCodec().encode(new Config("x")).length);
+    }
+
+    @Test
+    void decodesAtAnOffset() throws IOException {
+        byte[] data = new BinaryCodec().encode(new Config("at an offset"));
+        byte[] padded = new byte[data.length + 4];
+        System.arraycopy(data, 0, padded, 2, data.length);
+        assertEquals("at an offset", Codecs.decode(padded, 2, data.length).getConfig());
+    }
+
+    @Test
+    void unknownOrEmptyDataIsRejected() {
+        assertThrows(IOException.class, () -> Codecs.decode(null));
+        assertThrows(IOException.class, () -> Codecs.decode(new byte[0]));
+        assertThrows(IOException.class, () -> Codecs.decode(new byte[]{(byte)0x7f, 1, 2}));
+        // a chunk manifest is read by the chunk reader, never decoded as a config
+        assertThrows(IOException.class, () -> Codecs.decode(new byte[]{ChunkManifest.FORMAT, 1, 2}));
+    }
+
+    @Test
+    void brokenDataIsRejected() {
+        assertThrows(IOException.class, () -> Codecs.decode(new byte[]{BinaryCodec.FORMAT, 0, 0, 0, 9, 'a'}));
+        assertThrows(IOException.class, () -> Codecs.decode(new byte[]{JavaSerializationCodec.FORMAT, 1, 2, 3}));
+    }
+
+    @Test
+    void takenFormatCannotBeRegistered() {
+        assertThrows(IllegalArgumentException.class, () -> Codecs.register(new Codec() {
+            @Override
+            public byte getFormat() {
+                return BinaryCodec.FORMAT;
+            }
+
+            @Override
+            public byte[] encode(Config config) {
+                return new byte[]{BinaryCodec.FORMAT};
+            }
+
+            @Override
+            public Config decode(byte[] data) {
+                return null;
+            }
+        }));
+        assertSame(BinaryCodec.class, Codecs.forFormat(BinaryCodec.FORMAT).getClass());
+    }
+}
@@ -0,0 +1,95 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.data.Stat;
+import org.junit.jupiter.api.Test;
+import space.wudi.learncache.zookeeper.util.ZooKeeperResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConfigCacheTest {
+    private final ConfigCache cache = new ConfigCache();
+
+    private static Stat stat(long mzxid, int version) {
+        Stat stat = new Stat();
+        stat.setMzxid(mzxid);
+        stat.setVersion(version);
+        return stat;
+    }
+
+    @Test
+    void onlyALaterModificationReplaces() {
+        assertTrue(cache.put("/db", new Config("v1"), stat(10, 1)));
+        assertFalse(cache.put("/db", new Config("v0"), stat(5, 0)));
+        assertFalse(cache.put("/db", new Config("again"), stat(10, 1)));
+        assertEquals("v1", cache.get("/db").getConfig());
+        assertTrue(cache.put("/db", new Config("v2"), stat(20, 2)));
+        ConfigSnapshot snapshot = cache.getSnapshot("/db");
+        assertEquals("v2", snapshot.getConfig().getConfig());
+        assertEquals(20, snapshot.getMzxid());
+        assertEquals(2, snapshot.getVersion());
+    }
+
+    @Test
+    void deletedNodeKeepsOlderConfigsOut() {
+        cache.put("/db", new Config("v1"), stat(10, 1));
+        cache.delete("/db");
+        assertNull(cache.get("/db"));
+        assertTrue(cache.getSnapshot("/db").isDeleted());
+        assertEquals(10, cache.getSnapshot("/db").getMzxid());
+        // a read answered late
+        assertFalse(cache.put("/db", new Config("v1"), stat(10, 1)));
+        assertNull(cache.get("/db"));
+        // created again, the version starts from 0 but the mzxid is later
+        assertTrue(cache.put("/db", new Config("new"), stat(30, 0)));
+        assertEquals("new", cache.get("/db").getConfig());
+    }
+
+    @Test
+    void unknownPath() {
+        cache.delete("/none");
+        assertNull(cache.get("/none"));
+        assertNull(cache.getSnapshot("/none"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void resultsWithoutConfigAreIgnored() {
+        assertFalse(cache.update("/db", ZooKeeperResult.of(Code.NONODE, null, null)));
+        assertFalse(cache.update("/db", ZooKeeperResult.of(Code.OK, null, stat(1, 0))));
+        assertFalse(cache.update("/db", ZooKeeperResult.of(Code.OK, new Config("no stat"), null)));
+        assertTrue(cache.update("/db", ZooKeeperResult.of(Code.OK, new Config("v1"), stat(1, 0))));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void concurrentWritersLeaveTheLatest() throws InterruptedException {
+        List<Thread> writers = new ArrayList<>();
+        AtomicLong latest = new AtomicLong();
+        for (int t = 0; t < 8; t++) {
+            writers.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    long mzxid = ThreadLocalRandom.current().nextLong(1, 1000000);
+                    cache.put("/db", new Config(Long.toString(mzxid)), stat(mzxid, 0));
+                    latest.accumulateAndGet(mzxid, Math::max);
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(Long.toString(latest.get()), cache.get("/db").getConfig());
+        assertEquals(latest.get(), cache.getSnapshot("/db").getMzxid());
+    }
+}
@@ -0,0 +1,102 @@
+package space.wudi.learncache.zookeeper.configmanager;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeflateCodecTest {
+    private final DeflateCodec codec = new DeflateCodec(Codecs.getDefault());
+
+    private static String large() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            builder.append("key").append(i % 100).append('=').append(i).append('\n');
+        }
+        return builder.toString();
+    }
+
+    @Test
+    void roundTripKeepsTheInnerFormat() throws IOException {
+        String value = large();
+        byte[] data = codec.encode(new Config(value));
+        assertEquals(DeflateCodec.FORMAT, data[0]);
+        assertTrue(data.length < value.length() / 4);
+        assertEquals(value, codec.decode(data).getConfig());
+        assertEquals(value, Codecs.decode(data).getConfig());
+    }
+
+    @Test
+    void decodesAtAnOffset() throws IOException {
+        byte[] data = codec.encode(new Config("at an offset"));
+        byte[] padded = new byte[data.length + 7];
+        System.arraycopy(data, 0, padded, 3, data.length);
+        assertEquals("at an offset", codec.decode(padded, 3, data.length).getConfig());
+    }
+
+    @Test
+    void truncatedStreamIsRejected() throws IOException {
+        byte[] data = codec.encode(new Config(large()));
+        assertThrows(IOException.class, () -> codec.decode(Arrays.copyOf(data, data.length / 2)));
+    }
+
+    @Test
+    void corruptStreamIsRejected() throws IOException {
+        byte[] data = codec.encode(new Config(large()));
+        for (int i = 5; i < 25; i++) {
+            data[i] = (byte)~data[i];
+        }
+        assertThrows(IOException.class, () -> codec.decode(data));
+    }
+
+    @Test
+    void lengthAboveTheLimitIsRejectedBeforeInflating() throws IOException {
+        byte[] data = codec.encode(new Config("small"));
+        ByteBuffer.wrap(data).putInt(1, Integer.MAX_VALUE);
+        IOException e = assertThrows(IOException.class, () -> codec.decode(data));
+        assertTrue(e.getMessage().contains("larger than"), e.getMessage());
+    }
+
+    @Test
+    void limitPassedInIsApplied() throws IOException {
+        byte[] data = codec.encode(new Config(large()));
+        IOException e = assertThrows(IOException.class, () -> new DeflateCodec(Codecs.getDefault(), 1024).decode(data));
+        assertTrue(e.getMessage().contains("larger than 1024"), e.getMessage());
+    }
+
+    @Test
+    void lengthNotMatchingTheStreamIsRejected() throws IOException {
+        byte[] longer = codec.encode(new Config("small"));
+        ByteBuffer.wrap(longer).putInt(1, 32 * 1024 * 1024);
+        assertThrows(IOException.class, () -> codec.decode(longer));
+        byte[] shorter = codec.encode(new Config(large()));
+        ByteBuffer.wrap(shorter).putInt(1, 1000);
+        assertThrows(IOException.class, () -> codec.decode(shorter));
+    }
+
+    @Test
+    void bombIsRejected() {
+        // a megabyte of zeros claimed to be a few bytes
+        byte[] zeros = new byte[1024 * 1024];
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(zeros);
+        deflater.finish();
+        byte[] stream = new byte[8 * 1024];
+        int n = deflater.deflate(stream);
+        deflater.end();
+        byte[] data = ByteBuffer.allocate(5 + n).put(DeflateCodec.FORMAT).putInt(16).put(stream, 0, n).array();
+        assertThrows(IOException.class, () -> codec.decode(data));
+    }
+
+    @Test
+    void otherFormatIsRejected() throws IOException {
+        assertThrows(IOException.class, () -> codec.decode(Codecs.getDefault().encode(new Config("plain"))));
+        assertThrows(IOException.class, () -> codec.decode(new byte[]{DeflateCodec.FORMAT, 0, 0}));
+    }
+}
@@ -0,0 +1,43 @@
+package space.wudi.learncache.zookeeper.lock;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FencingTokenTest {
+
+    @Test
+    void orderedByEpochThenSequence() {
+        assertTrue(new FencingToken(1, 9).compareTo(new FencingToken(1, 10)) < 0);
+        // a directory created again counts from 0, its larger epoch still wins
+        assertTrue(new FencingToken(1, 9999).compareTo(new FencingToken(2, 0)) < 0);
+        assertEquals(0, new FencingToken(5, 7).compareTo(new FencingToken(5, 7)));
+    }
+
+    @Test
+    void stringsCompareLikeTokens() {
+        // the redis fenced set compares tokens as strings
+        List<FencingToken> tokens = Arrays.asList(
+                new FencingToken(Long.MAX_VALUE, 0), new FencingToken(10, 1), new FencingToken(9, Integer.MAX_VALUE),
+                new FencingToken(9, 10), new FencingToken(9, 9), new FencingToken(0, 0));
+        List<FencingToken> byToken = new ArrayList<>(tokens);
+        byToken.sort(null);
+        List<String> byString = tokens.stream().map(FencingToken::toString).sorted().collect(Collectors.toList());
+        assertEquals(byToken.stream().map(FencingToken::toString).collect(Collectors.toList()), byString);
+        assertEquals("0000000000000000009-0000000010", new FencingToken(9, 10).toString());
+    }
+
+    @Test
+    void equalTokens() {
+        assertEquals(new FencingToken(3, 4), new FencingToken(3, 4));
+        assertEquals(new FencingToken(3, 4).hashCode(), new FencingToken(3, 4).hashCode());
+        assertNotEquals(new FencingToken(3, 4), new FencingToken(4, 3));
+    }
+}
@@ -0,0 +1,67 @@
+package space.wudi.learncache.zookeeper.lock;
+
+import org.apache.zookeeper.KeeperException.Code;
+import org.junit.jupiter.api.Test;
+import space.wudi.learncache.zookeeper.util.ZooKeeperResult;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LockTest {
+
+    @Test
+    void sharedIsToldByTheMarkAfterTheLockName() {
+        assertTrue(Lock.isShared("orders", "orders-read-1f2e-0000000003"));
+        assertFalse(Lock.isShared("orders", "orders-1f2e-0000000003"));
+        assertFalse(Lock.isShared("orders", "orders0000000003"));
+    }
+
+    @Test
+    void lockNameMayContainTheSharedMark() {
+        assertFalse(Lock.isShared("a-read-b", "a-read-b-1f2e-0000000003"));
+        assertFalse(Lock.isShared("a-read-b", "a-read-b0000000003"));
+        assertTrue(Lock.isShared("a-read-b", "a-read-b-read-1f2e-0000000004"));
+    }
+
+    @Test
+    void sequenceIsTheSerialNumberAtTheEnd() {
+        assertEquals("0000000012", Lock.sequenceOf("x-read-ffff-0000000012"));
+        assertEquals("0000000003", Lock.sequenceOf("lock2-1f2e-0000000003"));
+        assertEquals("2147483647", Lock.sequenceOf("lock9" + "2147483647"));
+    }
+
+    @Test
+    void nodesAreOrderedBySerialNumberWhateverTheirPrefix() {
+        List<String> nodes = Arrays.asList("x-read-ffff-0000000012", "x0000000010", "x-abcd-0000000011");
+        nodes.sort(Lock.SEQUENCE_ORDER);
+        assertEquals(Arrays.asList("x0000000010", "x-abcd-0000000011", "x-read-ffff-0000000012"), nodes);
+    }
+
+    @Test
+    void ownNodeIsFoundByTheWholeId() {
+        String id = Lock.newId();
+        assertEquals(16, id.length());
+        assertTrue(Lock.isCreatedBy("x-" + id + "-0000000007", id));
+        assertTrue(Lock.isCreatedBy("x-read-" + id + "-0000000007", id));
+        assertFalse(Lock.isCreatedBy("x-1" + id + "-0000000007", id));
+        assertFalse(Lock.isCreatedBy("x-" + id + "0-0000000007", id));
+        // an id made of digits only is not taken for the serial number
+        assertFalse(Lock.isCreatedBy("x-0000000000000000-0000000012", "0000000012"));
+        assertFalse(Lock.isCreatedBy("x0000000012", "0000000012"));
+    }
+
+    @Test
+    void unlockWithoutHoldingDoesNothing() {
+        Lock lock = new Lock("never-held");
+        ZooKeeperResult<String> result = lock.unlockAsync().getNow(null);
+        assertEquals(Code.OK, result.getCode());
+        assertNull(result.getData());
+        lock.unlock();
+        assertNull(lock.getFencingToken());
+    }
+}
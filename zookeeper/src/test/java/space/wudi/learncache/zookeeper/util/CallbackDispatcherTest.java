@@ -0,0 +1,135 @@
+package space.wudi.learncache.zookeeper.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CallbackDispatcherTest {
+
+    @Test
+    void callbacksOfOneKeyRunInOrder() throws InterruptedException {
+        CallbackDispatcher dispatcher = new CallbackDispatcher("test-order", CallbackDispatcher.newExecutor("test-order", 4), 0);
+        Map<String, List<Integer>> runs = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            String key = "/key" + i % 10;
+            int n = i;
+            dispatcher.dispatch(key, () -> {
+                runs.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(n);
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int k = 0; k < 10; k++) {
+            int first = k;
+            List<Integer> expected = IntStream.range(0, 100).mapToObj(i -> first + i * 10).collect(Collectors.toList());
+            assertEquals(expected, runs.get("/key" + k));
+        }
+    }
+
+    @Test
+    void neverRunsOnTheDispatchingThread() throws InterruptedException {
+        CallbackDispatcher dispatcher = new CallbackDispatcher("test-thread", CallbackDispatcher.newExecutor("test-thread", 1), 0);
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            dispatcher.dispatch("/key" + i, () -> {
+                threads.add(Thread.currentThread());
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (Thread thread : threads) {
+            assertNotSame(Thread.currentThread(), thread);
+        }
+    }
+
+    @Test
+    void dispatchingNeverBlocksOverTheLimit() throws InterruptedException {
+        CallbackDispatcher dispatcher = new CallbackDispatcher("test-overflow", CallbackDispatcher.newExecutor("test-overflow", 1), 2);
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(100);
+        dispatcher.dispatch("/slow", () -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTimeoutPreemptively(Duration.ofSeconds(1), () -> {
+            for (int i = 0; i < 100; i++) {
+                dispatcher.dispatch("/slow", done::countDown);
+            }
+        });
+        gate.countDown();
+        // nothing dispatched by dispatch is dropped
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void latestReplacesTheWaitingOneOfTheSameOwnerOverTheLimit() throws InterruptedException {
+        CallbackDispatcher dispatcher = new CallbackDispatcher("test-latest", CallbackDispatcher.newExecutor("test-latest", 1), 1);
+        Object owner = new Object();
+        Object other = new Object();
+        List<String> runs = new CopyOnWriteArrayList<>();
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        dispatcher.dispatch("/path", () -> {
+            running.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+        dispatcher.dispatchLatest("/path", owner, () -> runs.add("v1"));
+        dispatcher.dispatchLatest("/path", owner, () -> runs.add("v2"));
+        dispatcher.dispatchLatest("/path", owner, () -> runs.add("v3"));
+        dispatcher.dispatchLatest("/path", other, () -> runs.add("other"));
+        dispatcher.dispatch("/path", () -> runs.add("plain"));
+        dispatcher.dispatchLatest("/path", owner, () -> runs.add("v4"));
+        dispatcher.dispatchLatest("/path", owner, () -> runs.add("v5"));
+        CountDownLatch done = new CountDownLatch(1);
+        dispatcher.dispatch("/path", done::countDown);
+        gate.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("v3", "other", "plain", "v5"), runs);
+    }
+
+    @Test
+    void latestIsKeptUnderTheLimit() throws InterruptedException {
+        CallbackDispatcher dispatcher = new CallbackDispatcher("test-under", CallbackDispatcher.newExecutor("test-under", 1), 100);
+        Object owner = new Object();
+        List<Integer> runs = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            int n = i;
+            dispatcher.dispatchLatest("/path", owner, () -> {
+                runs.add(n);
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, runs);
+    }
+}
@@ -0,0 +1,45 @@
+package space.wudi.learncache.zookeeper.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class EnsurePathTest {
+
+    @Test
+    void parentOfAPath() {
+        assertEquals("/a/b", EnsurePath.parentOf("/a/b/c"));
+        assertEquals("/", EnsurePath.parentOf("/a"));
+        assertEquals("/", EnsurePath.parentOf("/"));
+    }
+
+    @Test
+    void parentsComeBeforeChildren() {
+        List<String> paths = Arrays.asList("/a/b/c", "/b", "/a/bb", "/a", "/a/b");
+        paths.sort(EnsurePath.TOP_DOWN);
+        assertEquals(Arrays.asList("/a", "/b", "/a/b", "/a/bb", "/a/b/c"), paths);
+    }
+
+    @Test
+    void oneInstancePerRoot() {
+        assertSame(EnsurePath.of("/test-root"), EnsurePath.of("/test-root"));
+        assertNotSame(EnsurePath.of("/test-root"), EnsurePath.of("/test-other"));
+    }
+
+    @Test
+    void chrootIsStrippedFromCreatedPaths() {
+        assertEquals("/app/db", EnsurePath.stripRoot("/config", "/config/app/db", "/app/db"));
+        // sequential, the server appends to the path requested
+        assertEquals("/app/n-0000000001", EnsurePath.stripRoot("/config", "/config/app/n-0000000001", "/app/n-"));
+        // a node named like the root under it
+        assertEquals("/config/db", EnsurePath.stripRoot("/config", "/config/config/db", "/config/db"));
+        // returned without the chroot already
+        assertEquals("/config/db", EnsurePath.stripRoot("/config", "/config/db", "/config/db"));
+        assertEquals("/app/db", EnsurePath.stripRoot("/", "/app/db", "/app/db"));
+    }
+}